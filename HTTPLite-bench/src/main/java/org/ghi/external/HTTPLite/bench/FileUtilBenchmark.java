@@ -0,0 +1,91 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.ghi.external.HTTPLite.ApplicationException;
+import org.ghi.external.HTTPLite.CachingFileUtil;
+import org.ghi.external.HTTPLite.FileUtil;
+import org.ghi.external.HTTPLite.IFileUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures what the RequestHandler asks of the file util for every request: mapping
+ * the path to a file and finding out whether it is there, its length and date (the
+ * lookup), and its content type. Both the plain FileUtil and the CachingFileUtil
+ * are measured, against the document root in httplite.documentRoot (../httpd by
+ * default, i.e. the site in this repository).
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class FileUtilBenchmark {
+	public static final String KEY_DOCUMENT_ROOT = "httplite.documentRoot";
+	public static final String DEFAULT_DOCUMENT_ROOT = "../httpd";
+
+	@Param({ "FileUtil", "CachingFileUtil" })
+	public String impl;
+
+	@Param({ "/index.html", "/blog/its_a_start/index.html", "/img/main/logo.jpg" })
+	public String path;
+
+	private IFileUtil fileUtil;
+	private File file;
+
+	@Setup
+	public void setup() throws ApplicationException {
+		String documentRoot = System.getProperty(KEY_DOCUMENT_ROOT, DEFAULT_DOCUMENT_ROOT);
+		if (impl.equals("CachingFileUtil"))
+			fileUtil = new CachingFileUtil(documentRoot, 64 * 1024 * 1024, 1024 * 1024, 10000);
+		else
+			fileUtil = new FileUtil(documentRoot);
+
+		file = fileUtil.getFileFromPath(path);
+		if (!fileUtil.exists(file))
+			throw new ApplicationException("No " + path + " under " + documentRoot);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (fileUtil instanceof CachingFileUtil)
+			((CachingFileUtil) fileUtil).close();
+	}
+
+	@Benchmark
+	public void lookup(Blackhole blackhole) {
+		File found = fileUtil.getFileFromPath(path);
+		blackhole.consume(fileUtil.exists(found));
+		blackhole.consume(fileUtil.isReadable(found));
+		blackhole.consume(fileUtil.getContentLength(found));
+		blackhole.consume(fileUtil.getLastModifiedDate(found));
+	}
+
+	@Benchmark
+	public String contentType() throws ApplicationException {
+		return fileUtil.getContentType(file);
+	}
+
+	@Benchmark
+	public String etag() {
+		return fileUtil.getETag(file);
+	}
+
+}
@@ -0,0 +1,377 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ghi.external.HTTPLite.LatencyHistogram;
+
+/**
+ * A load generator for a running server: it replays a mix of files (the site under a
+ * document root, or a list of paths with weights) from a number of connections, and
+ * reports throughput and latency percentiles as JSON, so that runs can be compared
+ * by a script.
+ * 1) Closed loop (--mode=closed): each connection sends its next request as soon as
+ * 		it has the response to the previous one. This measures the most the server
+ * 		can do, but a slow response holds back the requests behind it.
+ * 2) Open loop (--mode=open): requests are due at a fixed --rate, whether or not the
+ * 		server has kept up, and their latency is counted from when they were due, not
+ * 		from when a connection got around to sending them. This is what users see (no
+ * 		coordinated omission), as long as there are enough connections for the rate.
+ *
+ * Usage:
+ * 	java -cp benchmarks.jar org.ghi.external.HTTPLite.bench.LoadGenerator [--option=value...]
+ * 	--host=localhost --port=8080 --mode=closed|open --connections=16 --rate=1000
+ * 	--duration=30 --warmup=5 (seconds) --keepalive=true --docroot=../httpd
+ * 	--mix=file (lines of "path [weight]", # for comments) --seed=42
+ * 	--output=file (stdout by default) --label=name
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class LoadGenerator {
+	public static final String MODE_CLOSED = "closed";
+	public static final String MODE_OPEN = "open";
+
+	// the percentiles we report
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	// private variables
+	private String host = "localhost";
+	private int port = 8080;
+	private String mode = MODE_CLOSED;
+	private int connections = 16;
+	private int rate = 0;
+	private int duration = 30;
+	private int warmup = 5;
+	private boolean keepAlive = true;
+	private String docroot = "../httpd";
+	private String mix;
+	private long seed = 42;
+	private String output;
+	private String label = "";
+	private String[] paths;
+	private double[] weights;
+
+	public static void main(String[] args) {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parseArguments(args);
+			generator.loadFiles();
+			String report = generator.run();
+
+			if (null == generator.output) {
+				System.out.println(report);
+			} else {
+				try (PrintStream out = new PrintStream(generator.output, "UTF-8")) {
+					out.println(report);
+				}
+			}
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Runs the load, and returns the report
+	 */
+	public String run() throws InterruptedException {
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+		AtomicLong next = new AtomicLong();
+		long interval = mode.equals(MODE_OPEN) ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+		Worker[] workers = new Worker[connections];
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++) {
+			workers[i] = new Worker(new Random(seed + i), start, measureStart, end, next, interval);
+			threads[i] = new Thread(workers[i], "LoadGenerator-" + i);
+			threads[i].start();
+		}
+		// a request still outstanding when the run is over gets the client timeout to finish, and is then cut off
+		long deadline = end + TimeUnit.MILLISECONDS.toNanos(SimpleClient.DEFAULT_TIMEOUT);
+		for (int i = 0; i < connections; i++) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining > 0)
+				threads[i].join(remaining);
+			if (threads[i].isAlive()) {
+				workers[i].client.abort();
+				threads[i].join();
+			}
+		}
+
+		// put the results of the workers together
+		LatencyHistogram latencies = new LatencyHistogram();
+		long[] statuses = new long[600];
+		long errors = 0;
+		long bytes = 0;
+		for (Worker worker : workers) {
+			latencies.add(worker.latencies);
+			for (int i = 0; i < statuses.length; i++)
+				statuses[i] += worker.statuses[i];
+			errors += worker.errors;
+			bytes += worker.bytes;
+		}
+		return report(latencies, statuses, errors, bytes);
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void parseArguments(String[] args) {
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0)
+				throw new IllegalArgumentException("Expected --option=value, got " + arg);
+			String name = arg.substring(2, equals);
+			String value = arg.substring(equals + 1);
+
+			if (name.equals("host"))
+				host = value;
+			else if (name.equals("port"))
+				port = parsePositive(name, value);
+			else if (name.equals("mode"))
+				mode = value;
+			else if (name.equals("connections"))
+				connections = parsePositive(name, value);
+			else if (name.equals("rate"))
+				rate = parsePositive(name, value);
+			else if (name.equals("duration"))
+				duration = parsePositive(name, value);
+			else if (name.equals("warmup"))
+				warmup = Integer.parseInt(value);
+			else if (name.equals("keepalive"))
+				keepAlive = Boolean.parseBoolean(value);
+			else if (name.equals("docroot"))
+				docroot = value;
+			else if (name.equals("mix"))
+				mix = value;
+			else if (name.equals("seed"))
+				seed = Long.parseLong(value);
+			else if (name.equals("output"))
+				output = value;
+			else if (name.equals("label"))
+				label = value;
+			else
+				throw new IllegalArgumentException("Unknown option --" + name);
+		}
+
+		if (!mode.equals(MODE_CLOSED) && !mode.equals(MODE_OPEN))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+		if (mode.equals(MODE_OPEN) && rate < 1)
+			throw new IllegalArgumentException("The open loop needs a --rate");
+		if (warmup < 0)
+			throw new IllegalArgumentException("Invalid warmup " + warmup);
+	}
+
+	private static int parsePositive(String name, String value) {
+		int number = Integer.parseInt(value);
+		if (number < 1)
+			throw new IllegalArgumentException("Invalid " + name + " " + value);
+		return number;
+	}
+
+	private void loadFiles() throws IOException {
+		List<String> paths = new ArrayList<String>();
+		List<Double> weights = new ArrayList<Double>();
+
+		if (null != mix) {
+			// path [weight] per line
+			for (String line : Files.readAllLines(new File(mix).toPath(), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				paths.add(fields[0]);
+				weights.add((fields.length > 1) ? Double.parseDouble(fields[1]) : 1.0);
+			}
+		} else {
+			// every readable file in the document root, equally often
+			File root = new File(docroot);
+			if (!root.isDirectory())
+				throw new IOException("Document root " + docroot + " is not a directory");
+			addFiles(root, "", paths);
+			for (int i = 0; i < paths.size(); i++)
+				weights.add(1.0);
+		}
+		if (paths.isEmpty())
+			throw new IOException("No files to request");
+
+		this.paths = paths.toArray(new String[paths.size()]);
+		// cumulative, so that picking one is a binary search
+		this.weights = new double[weights.size()];
+		double total = 0;
+		for (int i = 0; i < this.weights.length; i++) {
+			total += weights.get(i);
+			this.weights[i] = total;
+		}
+	}
+
+	private static void addFiles(File directory, String path, List<String> paths) {
+		File[] files = directory.listFiles();
+		if (null == files)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				addFiles(file, path + "/" + file.getName(), paths);
+			else if (file.isFile() && file.canRead())
+				paths.add(path + "/" + file.getName());
+		}
+	}
+
+	private String pickPath(Random random) {
+		double point = random.nextDouble() * weights[weights.length - 1];
+		int low = 0;
+		int high = weights.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (weights[middle] <= point)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return paths[low];
+	}
+
+	private String report(LatencyHistogram latencies, long[] statuses, long errors, long bytes) {
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\n");
+		json.append("  \"label\": ").append(quote(label)).append(",\n");
+		json.append("  \"host\": ").append(quote(host)).append(",\n");
+		json.append("  \"port\": ").append(port).append(",\n");
+		json.append("  \"mode\": ").append(quote(mode)).append(",\n");
+		json.append("  \"keepalive\": ").append(keepAlive).append(",\n");
+		json.append("  \"connections\": ").append(connections).append(",\n");
+		json.append("  \"rate\": ").append(rate).append(",\n");
+		json.append("  \"duration_s\": ").append(duration).append(",\n");
+		json.append("  \"warmup_s\": ").append(warmup).append(",\n");
+		json.append("  \"files\": ").append(paths.length).append(",\n");
+		json.append("  \"requests\": ").append(latencies.getCount()).append(",\n");
+		json.append("  \"errors\": ").append(errors).append(",\n");
+		json.append("  \"bytes\": ").append(bytes).append(",\n");
+		json.append("  \"throughput_rps\": ").append(format((double) latencies.getCount() / duration)).append(",\n");
+
+		json.append("  \"statuses\": {");
+		String separator = "";
+		for (int i = 0; i < statuses.length; i++) {
+			if (0 == statuses[i])
+				continue;
+			json.append(separator).append('"').append(i).append("\": ").append(statuses[i]);
+			separator = ", ";
+		}
+		json.append("},\n");
+
+		json.append("  \"latency_us\": {");
+		json.append("\"min\": ").append(latencies.getMin());
+		for (int i = 0; i < PERCENTILES.length; i++)
+			json.append(", \"").append(PERCENTILE_NAMES[i]).append("\": ").append(latencies.getPercentile(PERCENTILES[i]));
+		json.append(", \"max\": ").append(latencies.getMax());
+		json.append(", \"mean\": ").append(format(latencies.getMean()));
+		json.append("}\n");
+		json.append("}");
+		return json.toString();
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ')
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	/*
+	 * Helper classes
+	 */
+	// one connection's worth of load, and what it saw
+	private class Worker implements Runnable {
+		private final Random random;
+		private final long start;
+		private final long measureStart;
+		private final long end;
+		private final AtomicLong next;
+		private final long interval;
+		private final SimpleClient client = new SimpleClient(host, port, keepAlive);
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final long[] statuses = new long[600];
+		private long errors;
+		private long bytes;
+
+		private Worker(Random random, long start, long measureStart, long end, AtomicLong next, long interval) {
+			this.random = random;
+			this.start = start;
+			this.measureStart = measureStart;
+			this.end = end;
+			this.next = next;
+			this.interval = interval;
+		}
+
+		public void run() {
+			try {
+				waitUntil(start);
+				while (true) {
+					long due;
+					if (interval > 0) {
+						// open loop: take the next slot in the schedule, and wait for it if it is not due yet
+						due = start + next.getAndIncrement() * interval;
+						if (due >= end)
+							break;
+						waitUntil(due);
+					} else {
+						due = System.nanoTime();
+						if (due >= end)
+							break;
+					}
+
+					boolean measured = (due >= measureStart);
+					try {
+						SimpleClient.Response response = client.get(pickPath(random));
+						if (measured) {
+							latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due));
+							statuses[Math.max(0, Math.min(response.getStatus(), statuses.length - 1))]++;
+							bytes += response.getLength();
+						}
+					} catch (IOException e) {
+						client.close();
+						if (measured)
+							errors++;
+					}
+				}
+			} finally {
+				client.close();
+			}
+		}
+
+		private void waitUntil(long time) {
+			long now;
+			while ((now = System.nanoTime()) < time)
+				LockSupport.parkNanos(time - now);
+		}
+	}
+
+}
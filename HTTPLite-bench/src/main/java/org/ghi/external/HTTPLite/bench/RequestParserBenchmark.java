@@ -0,0 +1,82 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.ghi.external.HTTPLite.ApplicationException;
+import org.ghi.external.HTTPLite.HttpRequest;
+import org.ghi.external.HTTPLite.RequestParseException;
+import org.ghi.external.HTTPLite.RequestParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the RequestParser on its own: how long it takes to turn the bytes of a
+ * request head, already in the buffer, into an HttpRequest.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class RequestParserBenchmark {
+	// what curl sends
+	private static final String MINIMAL = "GET /index.html HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "User-Agent: curl/8.5.0\r\n"
+			+ "Accept: */*\r\n"
+			+ "\r\n";
+	// what a browser sends, coming back for a page it has seen before
+	private static final String BROWSER = "GET /blog/its_a_start/index.html?utm_source=feed HTTP/1.1\r\n"
+			+ "Host: localhost:8080\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cache-Control: max-age=0\r\n"
+			+ "Upgrade-Insecure-Requests: 1\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Accept-Language: en-US,en;q=0.9,fr;q=0.8\r\n"
+			+ "Cookie: _ga=GA1.1.123456789.1700000000; theme=dark\r\n"
+			+ "If-None-Match: \"18c4b2a1f00-509c\"\r\n"
+			+ "If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+			+ "\r\n";
+
+	@Param({ "minimal", "browser" })
+	public String request;
+
+	private RequestParser parser;
+	private HttpRequest parsed;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() throws ApplicationException {
+		parser = new RequestParser();
+		parsed = new HttpRequest();
+		String head = request.equals("browser") ? BROWSER : MINIMAL;
+		buffer = ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Benchmark
+	public HttpRequest parse() throws RequestParseException {
+		// the same request over and over, the way a keep-alive connection would see it
+		buffer.rewind();
+		if (!parser.parse(buffer, parsed))
+			throw new IllegalStateException("Incomplete request");
+		return parsed;
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.ghi.external.HTTPLite.ResponseWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures putting the head of a response together in the ResponseWriter: the
+ * headers of a 200 with content (the way the RequestHandler writes them) and of an
+ * empty 404, with and without writing them out to a channel that throws them away.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class ResponseWriterBenchmark {
+	private ResponseWriter writer;
+	private WritableByteChannel sink;
+	private long lastModified;
+
+	@Setup
+	public void setup() {
+		writer = new ResponseWriter();
+		sink = new NullChannel();
+		lastModified = System.currentTimeMillis() - 3600 * 1000;
+	}
+
+	@Benchmark
+	public ResponseWriter okHeaders() {
+		writeOKHeaders();
+		writer.clear();
+		return writer;
+	}
+
+	@Benchmark
+	public ResponseWriter notFound() {
+		writer.writeEmptyResponse(404, null);
+		writer.clear();
+		return writer;
+	}
+
+	@Benchmark
+	public ResponseWriter okHeadersWritten() throws IOException {
+		writeOKHeaders();
+		writer.writeTo(sink);
+		writer.clear();
+		return writer;
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void writeOKHeaders() {
+		writer.startResponse(200);
+		writer.writeHeader(ResponseWriter.CONTENT_TYPE, "text/html");
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, 20636);
+		writer.writeCommonHeaders(ResponseWriter.CONNECTION_KEEPALIVE);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified);
+		writer.writeHeader(ResponseWriter.ETAG, "\"18c4b2a1f00-509c\"");
+		writer.writeHeaderLine(ResponseWriter.ACCEPT_RANGES);
+		writer.endHeaders();
+	}
+
+	// a channel that takes everything and keeps nothing
+	private static class NullChannel implements WritableByteChannel {
+
+		public int write(ByteBuffer src) {
+			int written = src.remaining();
+			src.position(src.limit());
+			return written;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.ghi.external.HTTPLite.ApplicationException;
+import org.ghi.external.HTTPLite.ApplicationInjector;
+import org.ghi.external.HTTPLite.HTTPLite;
+import org.ghi.external.HTTPLite.IServerListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole request over loopback: a server (either engine) is started in the
+ * benchmark JVM on httplite.bench.port (18080 by default), serving the document root
+ * in httplite.documentRoot, and each benchmark thread sends it requests one after the
+ * other, on a kept-alive connection or on a new connection every time. Run it with
+ * -t to have more than one client.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class RoundTripBenchmark {
+	public static final String KEY_PORT = "httplite.bench.port";
+	public static final int DEFAULT_PORT = 18080;
+
+	@State(Scope.Benchmark)
+	public static class Server {
+		@Param({ HTTPLite.ENGINE_BLOCKING, HTTPLite.ENGINE_NIO })
+		public String engine;
+
+		private IServerListener listener;
+		private Thread thread;
+		private int port;
+
+		@Setup(Level.Trial)
+		public void start() throws ApplicationException, InterruptedException {
+			port = Integer.getInteger(KEY_PORT, DEFAULT_PORT);
+			Properties properties = new Properties();
+			properties.setProperty(HTTPLite.KEY_ENGINE, engine);
+			// the benchmark decides when connections close, not the server
+			properties.setProperty(HTTPLite.KEY_MAX_KEEPALIVE_REQUESTS, String.valueOf(Integer.MAX_VALUE));
+			String documentRoot = System.getProperty(FileUtilBenchmark.KEY_DOCUMENT_ROOT,
+					FileUtilBenchmark.DEFAULT_DOCUMENT_ROOT);
+			listener = new ApplicationInjector(documentRoot, properties).getServerListener(port, 64);
+			thread = new Thread(listener, "HTTPLite-bench");
+			thread.start();
+			awaitListening(port);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws InterruptedException {
+			listener.stop();
+			thread.join();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+		@Param({ "/index.html", "/img/main/logo.jpg" })
+		public String path;
+
+		@Param({ "true", "false" })
+		public boolean keepAlive;
+
+		private SimpleClient client;
+
+		@Setup(Level.Trial)
+		public void open(Server server) {
+			client = new SimpleClient("localhost", server.port, keepAlive);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			client.close();
+		}
+	}
+
+	@Benchmark
+	public int get(Client client) throws IOException {
+		SimpleClient.Response response = client.client.get(client.path);
+		if (response.getStatus() != 200)
+			throw new IOException("Unexpected status " + response.getStatus() + " for " + client.path);
+		return response.getLength();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static void awaitListening(int port) throws InterruptedException {
+		// the listener binds on its own thread, so wait for it to show up
+		for (int i = 0; i < 100; i++) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress("localhost", port), 100);
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IllegalStateException("Server did not start listening on port " + port);
+	}
+
+}
@@ -0,0 +1,281 @@
+package org.ghi.external.HTTPLite.bench;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal blocking HTTP/1.1 client for the benchmarks and the load generator: it
+ * sends GET requests (encoded once per path and reused) and reads the responses,
+ * keeping the connection open between them if asked to and the server agrees.
+ * The body is read and thrown away; only its length is kept.
+ *
+ * It understands just enough of what HTTPLite sends: a status line, a Content-Length
+ * (or no body for 204 and 304) and Connection: close.
+ *
+ * NOTE: This is not thread safe. Each benchmark or load generator thread has its own.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class SimpleClient implements AutoCloseable {
+	// how long we wait for the server before we call it an error
+	public static final int DEFAULT_TIMEOUT = 30000;
+
+	// private variables
+	private String host;
+	private int port;
+	private boolean keepAlive;
+	private int timeout;
+	private volatile Socket socket;
+	private volatile boolean aborted;
+	private InputStream in;
+	private OutputStream out;
+	private Map<String, byte[]> requests;
+	private byte[] line;
+	private byte[] discard;
+	private Response response;
+
+	public SimpleClient(String host, int port, boolean keepAlive) {
+		this(host, port, keepAlive, DEFAULT_TIMEOUT);
+	}
+
+	public SimpleClient(String host, int port, boolean keepAlive, int timeout) {
+		this.host = host;
+		this.port = port;
+		this.keepAlive = keepAlive;
+		this.timeout = timeout;
+		requests = new HashMap<String, byte[]>();
+		line = new byte[8192];
+		discard = new byte[64 * 1024];
+		response = new Response();
+	}
+
+	/*
+	 * Sends a GET for the path and reads the response. The response returned is reused
+	 * by the next call.
+	 */
+	public Response get(String path) throws IOException {
+		byte[] request = requests.get(path);
+		if (null == request) {
+			request = encodeRequest(path);
+			requests.put(path, request);
+		}
+
+		boolean reused = (null != socket);
+		try {
+			return exchange(request);
+		} catch (IOException e) {
+			close();
+			// the server may have closed a kept-alive connection just as we used it; try once more on a new one
+			if (!reused)
+				throw e;
+			return exchange(request);
+		}
+	}
+
+	public void close() {
+		if (null == socket)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore - there's nothing we can do
+		}
+		socket = null;
+		in = null;
+		out = null;
+	}
+
+	/*
+	 * Closes the connection from another thread, so that a get() that is taking too
+	 * long fails rather than waits; the client cannot be used after this
+	 */
+	public void abort() {
+		aborted = true;
+		Socket socket = this.socket;
+		if (null == socket)
+			return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore - there's nothing we can do
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private Response exchange(byte[] request) throws IOException {
+		if (null == socket)
+			connect();
+		out.write(request);
+		out.flush();
+
+		response.reset();
+		readHead();
+		readBody();
+		if (!keepAlive || response.close)
+			close();
+		return response;
+	}
+
+	private void connect() throws IOException {
+		if (aborted)
+			throw new IOException("Aborted");
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(timeout);
+		in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+		out = socket.getOutputStream();
+	}
+
+	private byte[] encodeRequest(String path) {
+		StringBuilder request = new StringBuilder(128);
+		request.append("GET ");
+		// the paths come from file names, which may have spaces in them
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == ' ')
+				request.append("%20");
+			else
+				request.append(c);
+		}
+		request.append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append(':').append(port).append("\r\n");
+		request.append("User-Agent: HTTPLite-bench\r\n");
+		if (!keepAlive)
+			request.append("Connection: close\r\n");
+		request.append("\r\n");
+		return request.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void readHead() throws IOException {
+		// the status line: HTTP/1.1 200 OK
+		int length = readLine();
+		if (length < 12 || line[8] != ' ')
+			throw new IOException("Malformed status line");
+		response.status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+
+		while ((length = readLine()) > 0) {
+			int colon = indexOf(line, length, ':');
+			if (colon < 0)
+				continue;
+			if (matches("Content-Length", colon)) {
+				response.length = (int) parseNumber(colon + 1, length);
+			} else if (matches("Connection", colon)) {
+				String value = new String(line, colon + 1, length - colon - 1, StandardCharsets.US_ASCII).trim();
+				response.close = value.equalsIgnoreCase("close");
+			}
+		}
+	}
+
+	private void readBody() throws IOException {
+		if (response.length < 0) {
+			// no length: 204 and 304 have no body, anything else runs until the server closes
+			if (response.status == 204 || response.status == 304) {
+				response.length = 0;
+				return;
+			}
+			response.length = 0;
+			int read;
+			while ((read = in.read(discard)) > 0)
+				response.length += read;
+			response.close = true;
+			return;
+		}
+
+		int remaining = response.length;
+		while (remaining > 0) {
+			int read = in.read(discard, 0, Math.min(remaining, discard.length));
+			if (read < 0)
+				throw new EOFException("Connection closed in the middle of the body");
+			remaining -= read;
+		}
+	}
+
+	// reads a line (without the CRLF) into line[], and returns its length
+	private int readLine() throws IOException {
+		int length = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("Connection closed in the middle of the response head");
+			if (b == '\n')
+				break;
+			if (length == line.length)
+				throw new IOException("Response header line too long");
+			line[length++] = (byte) b;
+		}
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+		return length;
+	}
+
+	private boolean matches(String name, int length) {
+		if (length != name.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (Character.toLowerCase((char) line[i]) != Character.toLowerCase(name.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private long parseNumber(int start, int end) throws IOException {
+		long value = 0;
+		boolean digits = false;
+		for (int i = start; i < end; i++) {
+			byte b = line[i];
+			if (b == ' ' || b == '\t')
+				continue;
+			if (b < '0' || b > '9')
+				throw new IOException("Malformed number in response header");
+			value = value * 10 + (b - '0');
+			digits = true;
+		}
+		if (!digits)
+			throw new IOException("Missing number in response header");
+		return value;
+	}
+
+	private static int indexOf(byte[] bytes, int length, char c) {
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Helper classes
+	 */
+	// what we keep of a response
+	public static final class Response {
+		private int status;
+		private int length;
+		private boolean close;
+
+		private void reset() {
+			status = 0;
+			length = -1;
+			close = false;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		// the length of the body
+		public int getLength() {
+			return length;
+		}
+	}
+
+}
@@ -0,0 +1,319 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The AccessLog writes a line for every response, in the Common or the Combined Log
+ * Format, without ever making a request thread wait for the disk.
+ * 1) The request thread only takes down what the line needs (a few references and
+ * 		numbers) and puts it in a bounded ring buffer; claiming a slot is a single
+ * 		compare and set, and there is no lock anywhere
+ * 2) If the ring is full (the disk cannot keep up) the entry is dropped and counted,
+ * 		rather than holding up the response
+ * 3) A background thread takes whatever is in the ring, formats it (the address,
+ * 		the date, the escaping all happen there) and writes it out in one go, so the
+ * 		file sees one write per batch, not one per request
+ *
+ * The lines look like this (combined adds the last two fields):
+ * 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /index.html HTTP/1.1" 200 2326 "-" "curl/7.64.1"
+ *
+ * NOTE: This is thread safe, and shared by all the threads of the server.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class AccessLog {
+	// the formats we know about
+	public static final String COMMON = "common";
+	public static final String COMBINED = "combined";
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	// how long the writer sleeps when there is nothing to write
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(20);
+	// how long close() waits for the writer to finish what is in the ring
+	private static final long CLOSE_WAIT = 5000;
+
+	// private variables
+	private Logger logger;
+	private OutputStream out;
+	private boolean combined;
+	private AtomicReferenceArray<Entry> ring;
+	private int mask;
+	private AtomicLong tail;
+	private volatile long head;
+	private volatile boolean running;
+	private LongAdder logged;
+	private LongAdder dropped;
+	private Thread writer;
+	// these belong to the writer thread
+	private StringBuilder batch;
+	private SimpleDateFormat dateFormat;
+	private long dateSecond;
+	private String date;
+
+	public AccessLog(String fileName, String format, int bufferSize) throws ApplicationException {
+		// sanity check the inputs before the file is created
+		boolean combined = isCombined(format);
+		checkBufferSize(bufferSize);
+		init(open(fileName), combined, bufferSize);
+	}
+
+	AccessLog(OutputStream out, boolean combined, int bufferSize) throws ApplicationException {
+		init(out, combined, bufferSize);
+	}
+
+	/*
+	 * Takes down the response the writer has just sent for the request. This never
+	 * blocks: if there is no room for it, it is dropped.
+	 */
+	public void log(HttpRequest request, ResponseWriter response) {
+		Entry entry = new Entry(request, response, System.currentTimeMillis());
+		long position;
+		do {
+			position = tail.get();
+			if (position - head >= ring.length()) {
+				dropped.increment();
+				return;
+			}
+		} while (!tail.compareAndSet(position, position + 1));
+		// the writer waits for the slot to be filled in before it moves past it
+		ring.lazySet((int) position & mask, entry);
+	}
+
+	/*
+	 * Writes out what is still in the ring, and closes the file
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_WAIT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.error("Error closing access log: ", e);
+		}
+	}
+
+	public long getLogged() {
+		return logged.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void init(OutputStream out, boolean combined, int bufferSize) throws ApplicationException {
+		// sanity check the inputs
+		if (null == out)
+			throw new ApplicationException("Output stream cannot be null!");
+		this.out = out;
+		this.combined = combined;
+
+		checkBufferSize(bufferSize);
+		// a power of two, so that the slot is just the low bits of the position
+		int capacity = Integer.highestOneBit(bufferSize);
+		if (capacity < bufferSize)
+			capacity <<= 1;
+		ring = new AtomicReferenceArray<Entry>(capacity);
+		mask = capacity - 1;
+
+		logger = LogManager.getLogger(AccessLog.class);
+		tail = new AtomicLong();
+		logged = new LongAdder();
+		dropped = new LongAdder();
+		batch = new StringBuilder(16 * 1024);
+		dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+		dateSecond = -1;
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeEntries();
+			}
+		}, "access-log-writer");
+		// this should never keep the application alive
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static OutputStream open(String fileName) throws ApplicationException {
+		if (null == fileName || fileName.isEmpty())
+			throw new ApplicationException("Access log file name cannot be empty!");
+		try {
+			return new FileOutputStream(fileName, true);
+		} catch (IOException e) {
+			throw new ApplicationException("Cannot open access log " + fileName + ": ", e);
+		}
+	}
+
+	private static void checkBufferSize(int bufferSize) throws ApplicationException {
+		if (bufferSize < 1 || bufferSize > (1 << 24))
+			throw new ApplicationException("Invalid access log buffer size " + bufferSize);
+	}
+
+	private static boolean isCombined(String format) throws ApplicationException {
+		if (null == format || format.equals(COMBINED))
+			return true;
+		if (format.equals(COMMON))
+			return false;
+		throw new ApplicationException("Invalid access log format " + format);
+	}
+
+	// runs on the writer thread until close() is called and everything is out
+	private void writeEntries() {
+		while (true) {
+			// read this first, so that whatever was logged before close() is in the batch
+			boolean stopping = !running;
+			int count = takeBatch();
+			if (count > 0) {
+				writeBatch();
+				logged.add(count);
+				continue;
+			}
+			if (stopping && head == tail.get())
+				break;
+			LockSupport.parkNanos(this, IDLE_WAIT);
+		}
+	}
+
+	// formats the entries in the ring, up to one ring full, and returns how many there were
+	private int takeBatch() {
+		int count = 0;
+		long position = head;
+		long end = tail.get();
+		while (position < end && count < ring.length()) {
+			int slot = (int) position & mask;
+			Entry entry = ring.get(slot);
+			// claimed, but not filled in yet; we will get it next time
+			if (null == entry)
+				break;
+			ring.set(slot, null);
+			position++;
+			head = position;
+			format(entry);
+			count++;
+		}
+		return count;
+	}
+
+	private void writeBatch() {
+		try {
+			out.write(batch.toString().getBytes(StandardCharsets.ISO_8859_1));
+			out.flush();
+		} catch (IOException e) {
+			logger.error("Error writing access log: ", e);
+		} finally {
+			batch.setLength(0);
+		}
+	}
+
+	// %h - - [%t] "%r" %>s %b, and "%{Referer}i" "%{User-Agent}i" for combined
+	private void format(Entry entry) {
+		batch.append((null == entry.address) ? "-" : entry.address.getHostAddress());
+		batch.append(" - - [").append(getDate(entry.time)).append("] \"");
+		if (null != entry.method) {
+			escape(entry.method);
+			batch.append(' ');
+			escape(entry.target);
+			batch.append(entry.http11 ? " HTTP/1.1" : " HTTP/1.0");
+		} else {
+			// we never got as far as the request line
+			batch.append('-');
+		}
+		batch.append("\" ").append(entry.status).append(' ');
+		if (entry.bytes > 0)
+			batch.append(entry.bytes);
+		else
+			batch.append('-');
+		if (combined) {
+			batch.append(" \"");
+			escape(entry.referer);
+			batch.append("\" \"");
+			escape(entry.userAgent);
+			batch.append('"');
+		}
+		batch.append('\n');
+	}
+
+	// the date only changes once a second, so it is only formatted once a second
+	private String getDate(long time) {
+		long second = time / 1000;
+		if (second != dateSecond) {
+			dateSecond = second;
+			date = dateFormat.format(new Date(time));
+		}
+		return date;
+	}
+
+	// what the client sent goes in quotes, so quotes, backslashes and anything unprintable are escaped
+	private void escape(String value) {
+		if (null == value) {
+			batch.append('-');
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				batch.append('\\').append(c);
+			} else if (c < 0x20 || c >= 0x7f) {
+				batch.append("\\x").append(Character.forDigit((c >> 4) & 0xf, 16))
+						.append(Character.forDigit(c & 0xf, 16));
+			} else {
+				batch.append(c);
+			}
+		}
+	}
+
+	/*
+	 * Helper classes
+	 */
+	// what a line needs, taken down on the request thread
+	private static final class Entry {
+		private final InetAddress address;
+		private final long time;
+		private final String method;
+		private final String target;
+		private final boolean http11;
+		private final int status;
+		private final long bytes;
+		private final String referer;
+		private final String userAgent;
+
+		private Entry(HttpRequest request, ResponseWriter response, long time) {
+			this.address = request.getRemoteAddress();
+			this.time = time;
+			this.method = request.getMethod();
+			// the target as it was sent, if the parser kept it
+			this.target = (null != request.getTarget()) ? request.getTarget() : request.getPath();
+			this.http11 = request.isHttp11();
+			this.status = response.getStatus();
+			this.bytes = response.getBodyLength();
+			this.referer = request.getReferer();
+			this.userAgent = request.getUserAgent();
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package org.ghi.external.HTTPLite;
 
 import java.net.Socket;
+import java.util.Properties;
 
 /**
  * An implementation of an injector to implement Inversion of Control (IoC)
@@ -11,24 +12,202 @@ import java.net.Socket;
 public class ApplicationInjector implements IApplicationInjector {
 	// keep track of document root
 	private String documentRoot;
+	// and of the rest of the configuration
+	private Properties properties;
+	// the file cache is shared by all the threads
+	private CachingFileUtil fileCache;
+	// and so is the cache of compressed files
+	private CompressionCache compressionCache;
+	// and so are the metrics, the page that shows them, and the access log
+	private ServerMetrics metrics;
+	private StatusPage statusPage;
+	private AccessLog accessLog;
 
 	public ApplicationInjector(String documentRoot) throws ApplicationException {
+		// use the defaults for everything else
+		this(documentRoot, new Properties());
+	}
+
+	public ApplicationInjector(String documentRoot, Properties properties) throws ApplicationException {
 		// sanity check the input
 		if (null == documentRoot)
 			throw new ApplicationException("Document root cannot be null!");
 		this.documentRoot = documentRoot;
+
+		if (null == properties)
+			throw new ApplicationException("Properties cannot be null!");
+		this.properties = properties;
+
+		metrics = new ServerMetrics();
 	}
 
-	public Runnable getServerListener(int port, int poolSize) throws ApplicationException {
-		return new ServerListener(this, port, poolSize);
+	/*
+	 * The engine is selected by configuration. Note that the pool size only
+	 * applies to the blocking engine; the non-blocking one is sized by its
+	 * number of event loops instead.
+	 */
+	public IServerListener getServerListener(int port, int poolSize) throws ApplicationException {
+		String engine = properties.getProperty(HTTPLite.KEY_ENGINE, HTTPLite.ENGINE_BLOCKING);
+
+		if (engine.equals(HTTPLite.ENGINE_BLOCKING)) {
+			int backlog = Integer.valueOf(properties.getProperty(HTTPLite.KEY_CONNECTION_BACKLOG,
+					String.valueOf(ServerListener.DEFAULT_BACKLOG)));
+			return new ServerListener(this, port, poolSize, backlog, getConnectionManager());
+		}
+
+		if (engine.equals(HTTPLite.ENGINE_NIO)) {
+			int eventLoops = Integer.valueOf(properties.getProperty(HTTPLite.KEY_EVENT_LOOPS,
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			return new NioServerListener(this, port, eventLoops, getConnectionManager());
+		}
+
+		throw new ApplicationException("Unknown engine " + engine);
 	}
 
-	public Runnable getWorker(Socket clientSocket) throws ApplicationException {
-		return new ConnectedWorker(this, clientSocket);
+	public Runnable getWorker(Socket clientSocket, ConnectionManager connections) throws ApplicationException {
+		return new ConnectedWorker(this, clientSocket, connections);
+	}
+
+	/*
+	 * Unless the cache is switched off, everyone shares the same (thread safe)
+	 * CachingFileUtil, created on first use.
+	 */
+	public synchronized IFileUtil getFileUtil() throws ApplicationException {
+		if (!Boolean.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_ENABLED, "true")))
+			return new FileUtil(documentRoot);
+
+		if (null == fileCache) {
+			long cacheSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_SIZE, "67108864"));
+			long maxFileSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_MAX_FILE_SIZE, "262144"));
+			int maxEntries = Integer.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_MAX_ENTRIES, "10000"));
+			// memory-mapping is off unless asked for
+			long mappedSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_MAPPED_SIZE, "268435456"));
+			long mappedMaxFileSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_FILE_CACHE_MAPPED_MAX_FILE_SIZE, "0"));
+			fileCache = new CachingFileUtil(documentRoot, cacheSize, maxFileSize, maxEntries, mappedSize,
+					mappedMaxFileSize);
+			registerFileCacheMetrics();
+		}
+		return fileCache;
+	}
+
+	/*
+	 * A parser keeps state between requests, so every connection gets a new one
+	 */
+	public RequestParser getRequestParser() throws ApplicationException {
+		int maxRequestLineSize = Integer.valueOf(properties.getProperty(HTTPLite.KEY_REQUEST_LINE_MAX_SIZE,
+				String.valueOf(RequestParser.DEFAULT_MAX_REQUEST_LINE_SIZE)));
+		int maxHeaderSize = Integer.valueOf(properties.getProperty(HTTPLite.KEY_REQUEST_HEADER_MAX_SIZE,
+				String.valueOf(RequestParser.DEFAULT_MAX_HEADER_SIZE)));
+		int maxHeaderCount = Integer.valueOf(properties.getProperty(HTTPLite.KEY_REQUEST_HEADER_MAX_COUNT,
+				String.valueOf(RequestParser.DEFAULT_MAX_HEADER_COUNT)));
+		// the access log needs a few more fields than serving the request does
+		return new RequestParser(maxRequestLineSize, maxHeaderSize, maxHeaderCount, null != getAccessLog());
+	}
+
+	/*
+	 * Each listener keeps track of its own connections, so every call gets a new one
+	 */
+	public ConnectionManager getConnectionManager() throws ApplicationException {
+		int maxConnections = Integer.valueOf(properties.getProperty(HTTPLite.KEY_MAX_CONNECTIONS,
+				String.valueOf(ConnectionManager.DEFAULT_MAX_CONNECTIONS)));
+		int maxRequests = Integer.valueOf(properties.getProperty(HTTPLite.KEY_MAX_KEEPALIVE_REQUESTS,
+				String.valueOf(ConnectionManager.DEFAULT_MAX_REQUESTS)));
+		int idleTimeout = Integer.valueOf(properties.getProperty(HTTPLite.KEY_KEEPALIVE_TIMEOUT,
+				String.valueOf(ConnectionManager.DEFAULT_IDLE_TIMEOUT)));
+		int readTimeout = Integer.valueOf(properties.getProperty(HTTPLite.KEY_READ_TIMEOUT,
+				String.valueOf(ConnectionManager.DEFAULT_READ_TIMEOUT)));
+		int retryAfter = Integer.valueOf(properties.getProperty(HTTPLite.KEY_RETRY_AFTER,
+				String.valueOf(ConnectionManager.DEFAULT_RETRY_AFTER)));
+		int shutdownTimeout = Integer.valueOf(properties.getProperty(HTTPLite.KEY_SHUTDOWN_TIMEOUT,
+				String.valueOf(ConnectionManager.DEFAULT_SHUTDOWN_TIMEOUT)));
+		return new ConnectionManager(maxConnections, maxRequests, idleTimeout, readTimeout, retryAfter,
+				shutdownTimeout);
+	}
+
+	/*
+	 * Unless compression is switched off, everyone shares the same (thread safe)
+	 * CompressionCache, created on first use.
+	 */
+	public synchronized CompressionCache getCompressionCache() throws ApplicationException {
+		if (!Boolean.valueOf(properties.getProperty(HTTPLite.KEY_COMPRESSION_ENABLED, "true")))
+			return null;
+
+		if (null == compressionCache) {
+			long minSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_COMPRESSION_MIN_SIZE, "1024"));
+			long maxFileSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_COMPRESSION_MAX_FILE_SIZE, "1048576"));
+			long cacheSize = Long.valueOf(properties.getProperty(HTTPLite.KEY_COMPRESSION_CACHE_SIZE, "16777216"));
+			compressionCache = new CompressionCache(getFileUtil(), minSize, maxFileSize, cacheSize);
+			metrics.registerGauge("compression_cache_bytes", "Bytes of compressed content in memory.",
+					compressionCache::getCachedBytes);
+			metrics.registerGauge("compression_cache_files", "Files with compressed content in memory.",
+					compressionCache::getCachedFiles);
+		}
+		return compressionCache;
+	}
+
+	/*
+	 * Everyone shares the same metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/*
+	 * Unless the status path is set to nothing, everyone shares the same StatusPage,
+	 * created on first use.
+	 */
+	public synchronized StatusPage getStatusPage() throws ApplicationException {
+		String path = properties.getProperty(HTTPLite.KEY_STATUS_PATH, StatusPage.DEFAULT_PATH).trim();
+		if (path.isEmpty())
+			return null;
+
+		if (null == statusPage) {
+			boolean remoteAccess = Boolean.valueOf(properties.getProperty(HTTPLite.KEY_STATUS_REMOTE_ACCESS, "false"));
+			statusPage = new StatusPage(path, remoteAccess, metrics);
+		}
+		return statusPage;
+	}
+
+	/*
+	 * If there is an access log file, everyone shares the same (thread safe) AccessLog,
+	 * created on first use.
+	 */
+	public synchronized AccessLog getAccessLog() throws ApplicationException {
+		String fileName = properties.getProperty(HTTPLite.KEY_ACCESS_LOG, "").trim();
+		if (fileName.isEmpty())
+			return null;
+
+		if (null == accessLog) {
+			String format = properties.getProperty(HTTPLite.KEY_ACCESS_LOG_FORMAT, AccessLog.COMBINED);
+			int bufferSize = Integer.valueOf(properties.getProperty(HTTPLite.KEY_ACCESS_LOG_BUFFER_SIZE,
+					String.valueOf(AccessLog.DEFAULT_BUFFER_SIZE)));
+			accessLog = new AccessLog(fileName, format, bufferSize);
+			metrics.registerCounter("access_log_lines_total", "Lines written to the access log.",
+					accessLog::getLogged);
+			metrics.registerCounter("access_log_dropped_total", "Lines dropped because the access log could not keep up.",
+					accessLog::getDropped);
+		}
+		return accessLog;
 	}
 
-	public IFileUtil getFileUtil() throws ApplicationException {
-		return new FileUtil(documentRoot);
+	/*
+	 * Private helper methods
+	 */
+	private void registerFileCacheMetrics() {
+		metrics.registerCounter("file_cache_metadata_hits_total", "File metadata found in the cache.",
+				fileCache::getMetadataHits);
+		metrics.registerCounter("file_cache_metadata_misses_total", "File metadata not found in the cache.",
+				fileCache::getMetadataMisses);
+		metrics.registerCounter("file_cache_content_hits_total", "File content found in the cache.",
+				fileCache::getContentHits);
+		metrics.registerCounter("file_cache_content_misses_total", "File content not found in the cache.",
+				fileCache::getContentMisses);
+		metrics.registerCounter("file_cache_evictions_total", "Files evicted from the cache.",
+				fileCache::getEvictions);
+		metrics.registerGauge("file_cache_bytes", "Bytes of file content on the heap.", fileCache::getCachedBytes);
+		metrics.registerGauge("file_cache_files", "Files with their content on the heap.", fileCache::getCachedFiles);
+		metrics.registerGauge("file_cache_mapped_bytes", "Bytes of memory-mapped files.", fileCache::getMappedBytes);
+		metrics.registerGauge("file_cache_mapped_files", "Memory-mapped files.", fileCache::getMappedFiles);
 	}
 
 }
@@ -0,0 +1,133 @@
+package org.ghi.external.HTTPLite;
+
+import java.util.Arrays;
+
+/**
+ * Parses the Range header of a request (RFC 7233) against the length of the file,
+ * e.g. "bytes=0-499", "bytes=500-", "bytes=-500" or "bytes=0-0,-1".
+ * The result is the satisfiable ranges as an array of pairs of first and last byte
+ * positions (inclusive), sorted, with overlapping and adjacent ranges merged so
+ * that no part of the file is sent twice.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public final class ByteRanges {
+	// more ranges than this in one request and we just send the whole file
+	public static final int MAX_RANGES = 16;
+
+	private ByteRanges() {
+		// static methods only
+	}
+
+	/*
+	 * Returns the ranges, an empty array if none of them can be satisfied (416), or
+	 * null if the header should be ignored (it is not a valid set of byte ranges, or
+	 * it has too many of them) and the whole file sent instead
+	 */
+	public static long[] parse(String header, long length) {
+		if (null == header || !header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		long[] ranges = new long[2 * MAX_RANGES];
+		int count = 0;
+		boolean empty = true;
+		int start = 6;
+		while (start <= header.length()) {
+			int comma = header.indexOf(',', start);
+			if (comma < 0)
+				comma = header.length();
+			String spec = header.substring(start, comma).trim();
+			start = comma + 1;
+
+			// empty list elements are allowed
+			if (spec.isEmpty())
+				continue;
+			if (count == MAX_RANGES)
+				return null;
+			empty = false;
+
+			int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+			long first = parseNumber(spec, 0, dash);
+			long last = parseNumber(spec, dash + 1, spec.length());
+
+			if (0 == dash) {
+				// a suffix: the last so many bytes
+				if (last < 0)
+					return null;
+				if (0 == last || 0 == length)
+					continue;
+				first = Math.max(length - last, 0);
+				last = length - 1;
+			} else {
+				if (first < 0 || (dash + 1 < spec.length() && last < first))
+					return null;
+				if (first >= length)
+					continue;
+				// an open or too long range stops at the end of the file
+				if (last < 0 || last >= length)
+					last = length - 1;
+			}
+
+			ranges[2 * count] = first;
+			ranges[2 * count + 1] = last;
+			count++;
+		}
+		// there has to be at least one range, satisfiable or not
+		if (empty)
+			return null;
+		return merge(ranges, count);
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static long[] merge(long[] ranges, int count) {
+		// sort the ranges by their first byte; there are only a few of them
+		for (int i = 1; i < count; i++) {
+			for (int j = i; j > 0 && ranges[2 * j] < ranges[2 * (j - 1)]; j--) {
+				swap(ranges, 2 * j, 2 * (j - 1));
+				swap(ranges, 2 * j + 1, 2 * (j - 1) + 1);
+			}
+		}
+
+		int merged = 0;
+		for (int i = 0; i < count; i++) {
+			long first = ranges[2 * i];
+			long last = ranges[2 * i + 1];
+			if (merged > 0 && first <= ranges[2 * merged - 1] + 1) {
+				ranges[2 * merged - 1] = Math.max(ranges[2 * merged - 1], last);
+			} else {
+				ranges[2 * merged] = first;
+				ranges[2 * merged + 1] = last;
+				merged++;
+			}
+		}
+		return Arrays.copyOf(ranges, 2 * merged);
+	}
+
+	private static void swap(long[] values, int i, int j) {
+		long value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	// returns the number, -1 if there is none, or -2 if it is not a number
+	private static long parseNumber(String s, int start, int end) {
+		if (start == end)
+			return -1;
+		if (end - start > 18)
+			return -2;
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -2;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,621 @@
+package org.ghi.external.HTTPLite;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A caching, thread safe implementation of IFileUtil, meant to be shared by all
+ * the threads of the server.
+ * 1) It keeps an index of the metadata (existence, readability, length, last modified
+ * 		date and content type) of the files it has been asked about, and a separate one
+ * 		of the files it was asked about that do not exist (e.g. the precompressed siblings
+ * 		most files do not have), so that requests for random paths only crowd out each other
+ * 2) It keeps the content of small files in memory, in a size bounded cache with
+ * 		(approximately) least recently used eviction; a hit does not take any lock
+ * 2a) Optionally, it keeps medium sized files memory-mapped, in a second cache with
+ * 		its own bound; these are served without being copied into the heap at all
+ * 3) It watches the document root for changes (WatchService) and drops anything
+ * 		that has changed, so that the cache stays consistent with the file-system
+ *
+ * Once a site is warmed up, serving a request does not touch the file-system at all.
+ *
+ * NOTE: The WatchService is asynchronous, so a change becomes visible shortly after
+ * it is made rather than immediately (on some systems, e.g. MacOS, the WatchService
+ * polls, and this can take several seconds). If the document root cannot be watched
+ * this falls back to not caching anything, rather than serving stale files.
+ * Only map files that are replaced rather than rewritten in place: a mapped file that
+ * is truncated while it is being sent makes the JVM fail the write with an error.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class CachingFileUtil implements IFileUtil {
+	// private variables
+	private Logger logger;
+	private String documentRoot;
+	private long maxFileSize;
+	private long maxMappedFileSize;
+	private int maxEntries;
+	private volatile boolean caching;
+
+	// request path to file, file to metadata, and the files that do not exist
+	private Map<String, File> resolved;
+	private Map<File, Metadata> metadata;
+	private Map<File, Metadata> missing;
+
+	// the content caches, for files on the heap and memory-mapped files
+	private ContentCache content;
+	private ContentCache mapped;
+
+	// bumped on every invalidation, so that a slow load cannot put back something stale
+	private AtomicLong generation;
+
+	// statistics
+	private LongAdder metadataHits;
+	private LongAdder metadataMisses;
+	private LongAdder contentHits;
+	private LongAdder contentMisses;
+	private LongAdder evictions;
+
+	// keeping track of the document root
+	private WatchService watcher;
+	private Map<WatchKey, Path> watchedDirectories;
+
+	public CachingFileUtil(String documentRoot, long maxCacheSize, long maxFileSize, int maxEntries)
+			throws ApplicationException {
+		// no memory-mapping
+		this(documentRoot, maxCacheSize, maxFileSize, maxEntries, 0, 0);
+	}
+
+	public CachingFileUtil(String documentRoot, long maxCacheSize, long maxFileSize, int maxEntries,
+			long maxMappedSize, long maxMappedFileSize) throws ApplicationException {
+		// sanity check input
+		if (null == documentRoot)
+			throw new ApplicationException("Document root cannot be null!");
+		// remove trailing slashes and save
+		this.documentRoot = documentRoot.replaceAll("/+$", "");
+
+		if (maxCacheSize < 0)
+			throw new ApplicationException("Invalid cache size " + maxCacheSize);
+
+		if (maxFileSize < 0)
+			throw new ApplicationException("Invalid maximum cached file size " + maxFileSize);
+		this.maxFileSize = maxFileSize;
+
+		if (maxEntries < 1)
+			throw new ApplicationException("Invalid maximum number of entries " + maxEntries);
+		this.maxEntries = maxEntries;
+
+		if (maxMappedSize < 0)
+			throw new ApplicationException("Invalid mapped cache size " + maxMappedSize);
+
+		if (maxMappedFileSize < 0)
+			throw new ApplicationException("Invalid maximum mapped file size " + maxMappedFileSize);
+		this.maxMappedFileSize = maxMappedFileSize;
+
+		logger = LogManager.getLogger(CachingFileUtil.class);
+
+		resolved = new ConcurrentHashMap<String, File>();
+		metadata = new ConcurrentHashMap<File, Metadata>();
+		missing = new ConcurrentHashMap<File, Metadata>();
+		content = new ContentCache(maxCacheSize);
+		mapped = new ContentCache(maxMappedSize);
+		generation = new AtomicLong();
+
+		metadataHits = new LongAdder();
+		metadataMisses = new LongAdder();
+		contentHits = new LongAdder();
+		contentMisses = new LongAdder();
+		evictions = new LongAdder();
+
+		// we can only cache if we can tell when things change
+		caching = startWatching();
+	}
+
+	public File getFileFromPath(String path) {
+		File file = resolved.get(path);
+		if (null != file)
+			return file;
+
+		long loadGeneration = generation.get();
+		file = new File(documentRoot + path);
+		Metadata fileMetadata = getMetadata(file);
+		// if it is a directory, look for an "index.html" in the directory
+		if (fileMetadata.directory) {
+			file = new File(documentRoot + path.replace("/+$", "") + "/index.html");
+			fileMetadata = getMetadata(file);
+		}
+
+		// only remember the paths that lead somewhere
+		if (caching && fileMetadata.exists)
+			putIfCurrent(resolved, path, file, loadGeneration);
+		return file;
+	}
+
+	public boolean exists(File file) {
+		return getMetadata(file).exists;
+	}
+
+	public boolean isReadable(File file) {
+		return getMetadata(file).readable;
+	}
+
+	public long getContentLength(File file) {
+		return getMetadata(file).length;
+	}
+
+	public String getContentType(File file) throws ApplicationException {
+		return getMetadata(file).contentType;
+	}
+
+	public Date getLastModifiedDate(File file) {
+		return new Date(getMetadata(file).lastModified);
+	}
+
+	public String getETag(File file) {
+		return getMetadata(file).etag;
+	}
+
+	/*
+	 * Returns the content of small (and optionally medium sized) files from memory,
+	 * loading it on a miss. Returns null for anything we would rather not keep in memory.
+	 */
+	public ByteBuffer getContent(File file) throws ApplicationException {
+		ByteBuffer buffer = content.get(file);
+		if (null == buffer)
+			buffer = mapped.get(file);
+		if (null != buffer) {
+			contentHits.increment();
+			return buffer.duplicate();
+		}
+		contentMisses.increment();
+
+		// if we cannot keep it, reading it is wasted: the caller sends it straight from the file
+		if (!caching)
+			return null;
+
+		Metadata fileMetadata = getMetadata(file);
+		if (!fileMetadata.exists || fileMetadata.directory || !fileMetadata.readable)
+			return null;
+
+		long loadGeneration = generation.get();
+		if (fileMetadata.length <= maxFileSize)
+			buffer = readContent(file);
+		else if (fileMetadata.length <= maxMappedFileSize)
+			buffer = mapContent(file);
+		else
+			return null;
+
+		// the file changed under our feet - the length we advertise would be wrong
+		if (buffer.capacity() != fileMetadata.length)
+			return null;
+
+		if (caching) {
+			if (buffer.isDirect())
+				mapped.put(file, buffer, loadGeneration);
+			else
+				content.put(file, buffer, loadGeneration);
+		}
+		return buffer.duplicate();
+	}
+
+	/*
+	 * Stops watching the document root. The cache cannot be trusted after this so it
+	 * stops caching as well.
+	 */
+	public void close() {
+		caching = false;
+		invalidateAll();
+		try {
+			if (null != watcher)
+				watcher.close();
+		} catch (IOException e) {
+			logger.error("Unknown error while closing the watch service: ", e);
+		}
+		logger.info("File cache closed: {}", getStatistics());
+	}
+
+	/*
+	 * Statistics
+	 */
+	public long getMetadataHits() {
+		return metadataHits.sum();
+	}
+
+	public long getMetadataMisses() {
+		return metadataMisses.sum();
+	}
+
+	public long getContentHits() {
+		return contentHits.sum();
+	}
+
+	public long getContentMisses() {
+		return contentMisses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getCachedBytes() {
+		return content.getSize();
+	}
+
+	public int getCachedFiles() {
+		return content.getCount();
+	}
+
+	public long getMappedBytes() {
+		return mapped.getSize();
+	}
+
+	public int getMappedFiles() {
+		return mapped.getCount();
+	}
+
+	public String getStatistics() {
+		return "metadata hits " + getMetadataHits() + ", metadata misses " + getMetadataMisses()
+				+ ", content hits " + getContentHits() + ", content misses " + getContentMisses()
+				+ ", evictions " + getEvictions() + ", cached files " + getCachedFiles()
+				+ ", cached bytes " + getCachedBytes() + " of " + content.getMaxSize()
+				+ ", mapped files " + getMappedFiles() + ", mapped bytes " + getMappedBytes() + " of "
+				+ mapped.getMaxSize();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private Metadata getMetadata(File file) {
+		Metadata fileMetadata = metadata.get(file);
+		if (null == fileMetadata)
+			fileMetadata = missing.get(file);
+		if (null != fileMetadata) {
+			metadataHits.increment();
+			return fileMetadata;
+		}
+		metadataMisses.increment();
+
+		long loadGeneration = generation.get();
+		fileMetadata = loadMetadata(file);
+
+		// there is no end to the files that do not exist, so they are kept apart
+		if (caching)
+			putIfCurrent(fileMetadata.exists ? metadata : missing, file, fileMetadata, loadGeneration);
+		return fileMetadata;
+	}
+
+	// puts it in the index, unless something changed since it was loaded
+	private <K, V> void putIfCurrent(Map<K, V> index, K key, V value, long loadGeneration) {
+		if (loadGeneration != generation.get())
+			return;
+		makeRoom(index);
+		index.put(key, value);
+		// it changed while we were putting it in; the invalidation may have missed it
+		if (loadGeneration != generation.get())
+			index.remove(key, value);
+	}
+
+	// drops entries one at a time until there is room for one more
+	private <K, V> void makeRoom(Map<K, V> index) {
+		Iterator<K> keys = index.keySet().iterator();
+		while (index.size() >= maxEntries && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	private Metadata loadMetadata(File file) {
+		Path path = file.toPath();
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			// it does not exist (or as good as)
+			return new Metadata(false, false, false, 0, 0, null, null);
+		}
+
+		// use our own table first, and fall back to the detectors installed on the system
+		String contentType = MimeTypes.getContentType(file.getName());
+		if (null == contentType && !attributes.isDirectory()) {
+			try {
+				contentType = Files.probeContentType(path);
+			} catch (IOException e) {
+				logger.error("Error getting content type: ", e);
+			}
+		}
+
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		return new Metadata(true, attributes.isDirectory(), Files.isReadable(path), attributes.size(),
+				lastModified, contentType, FileUtil.makeETag(attributes.size(), lastModified));
+	}
+
+	private ByteBuffer readContent(File file) throws ApplicationException {
+		try {
+			return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		} catch (IOException e) {
+			throw new ApplicationException("Error reading file: ", e);
+		}
+	}
+
+	private ByteBuffer mapContent(File file) throws ApplicationException {
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			throw new ApplicationException("Error mapping file: ", e);
+		}
+	}
+
+	private void invalidate(File file) {
+		generation.incrementAndGet();
+		metadata.remove(file);
+		missing.remove(file);
+		content.remove(file);
+		mapped.remove(file);
+	}
+
+	private void invalidateAll() {
+		generation.incrementAndGet();
+		resolved.clear();
+		metadata.clear();
+		missing.clear();
+		content.clear();
+		mapped.clear();
+	}
+
+	private boolean startWatching() {
+		Path root = Paths.get(documentRoot);
+		if (!Files.isDirectory(root)) {
+			logger.error("Document root {} is not a directory, file cache disabled", documentRoot);
+			return false;
+		}
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			watchedDirectories = new ConcurrentHashMap<WatchKey, Path>();
+			watchAll(root);
+		} catch (IOException e) {
+			logger.error("Cannot watch document root {}, file cache disabled: ", documentRoot, e);
+			return false;
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				processEvents();
+			}
+		}, "file-cache-watcher");
+		// this should never keep the application alive
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	// the WatchService is not recursive, so we need to register every directory
+	private void watchAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+				WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				watchedDirectories.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void processEvents() {
+		while (true) {
+			// this will block until something changes
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				// we expect this to happen when close() is called
+				return;
+			}
+
+			Path dir = watchedDirectories.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				// we lost track of what happened, so start from scratch
+				if (event.kind() == OVERFLOW || null == dir) {
+					invalidateAll();
+					continue;
+				}
+
+				Path child = dir.resolve((Path) event.context());
+				invalidate(child.toFile());
+
+				// a directory appearing or disappearing changes how paths resolve
+				if (event.kind() == ENTRY_CREATE) {
+					resolved.clear();
+					if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+						try {
+							watchAll(child);
+						} catch (IOException e) {
+							logger.error("Cannot watch new directory {}: ", child, e);
+						}
+						// files may have appeared in it before we started watching
+						invalidateAll();
+					}
+				} else if (event.kind() == ENTRY_DELETE) {
+					resolved.clear();
+					// we cannot tell which of its files we still hold on to
+					if (watchedDirectories.containsValue(child))
+						invalidateAll();
+				}
+			}
+
+			// the directory is gone
+			if (!key.reset())
+				watchedDirectories.remove(key);
+		}
+	}
+
+	/*
+	 * A size bounded map of file contents, with approximate LRU eviction: every entry
+	 * carries the time it was last used, and the eviction sweeps the map a few entries
+	 * at a time (like a clock hand) and drops the least recently used of those. A hit
+	 * is a ConcurrentHashMap lookup and nothing else; only the eviction takes a lock.
+	 */
+	private final class ContentCache {
+		// how many entries the eviction looks at to pick one
+		private static final int EVICTION_SAMPLE = 8;
+		// how stale a last used time may get before a hit writes it again
+		private static final long STAMP_RESOLUTION = 1000000;
+
+		private final ConcurrentHashMap<File, CachedBuffer> buffers;
+		private final long maxSize;
+		private final AtomicLong size;
+		// where the eviction got to; only used while holding the lock
+		private Iterator<Map.Entry<File, CachedBuffer>> hand;
+
+		private ContentCache(long maxSize) {
+			this.buffers = new ConcurrentHashMap<File, CachedBuffer>();
+			this.maxSize = maxSize;
+			this.size = new AtomicLong();
+		}
+
+		private ByteBuffer get(File file) {
+			CachedBuffer cached = buffers.get(file);
+			if (null == cached)
+				return null;
+			// a hot file would otherwise have every core writing to the same cache line
+			long now = System.nanoTime();
+			if (now - cached.lastUsed > STAMP_RESOLUTION)
+				cached.lastUsed = now;
+			return cached.buffer;
+		}
+
+		private void put(File file, ByteBuffer buffer, long loadGeneration) {
+			int bufferSize = buffer.capacity();
+			// something changed while we were reading, or it would never fit
+			if (loadGeneration != generation.get() || bufferSize > maxSize)
+				return;
+			if (null != buffers.putIfAbsent(file, new CachedBuffer(buffer)))
+				return;
+			size.addAndGet(bufferSize);
+
+			// it changed while we were putting it in; the invalidation may have missed it
+			if (loadGeneration != generation.get()) {
+				remove(file);
+				return;
+			}
+			if (size.get() > maxSize)
+				evict();
+		}
+
+		private void remove(File file) {
+			CachedBuffer cached = buffers.remove(file);
+			if (null != cached)
+				size.addAndGet(-cached.buffer.capacity());
+		}
+
+		private void clear() {
+			for (File file : buffers.keySet())
+				remove(file);
+		}
+
+		private long getSize() {
+			return size.get();
+		}
+
+		private int getCount() {
+			return buffers.size();
+		}
+
+		private long getMaxSize() {
+			return maxSize;
+		}
+
+		// drops the least recently used of a sample of entries, until everything fits
+		private synchronized void evict() {
+			while (size.get() > maxSize) {
+				Map.Entry<File, CachedBuffer> victim = null;
+				for (int i = 0; i < EVICTION_SAMPLE; i++) {
+					if (null == hand || !hand.hasNext())
+						hand = buffers.entrySet().iterator();
+					if (!hand.hasNext())
+						return;
+					Map.Entry<File, CachedBuffer> candidate = hand.next();
+					if (null == victim || candidate.getValue().lastUsed < victim.getValue().lastUsed)
+						victim = candidate;
+				}
+				// somebody else may have removed it in the meantime
+				if (buffers.remove(victim.getKey(), victim.getValue())) {
+					size.addAndGet(-victim.getValue().buffer.capacity());
+					evictions.increment();
+				}
+			}
+		}
+	}
+
+	/*
+	 * A cached file content, and when it was last used
+	 */
+	private static final class CachedBuffer {
+		private final ByteBuffer buffer;
+		// written without synchronization; an occasional lost update only makes the LRU less exact
+		private volatile long lastUsed;
+
+		private CachedBuffer(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.lastUsed = System.nanoTime();
+		}
+	}
+
+	/*
+	 * Everything we know about a file, gathered in one go
+	 */
+	private static final class Metadata {
+		private final boolean exists;
+		private final boolean directory;
+		private final boolean readable;
+		private final long length;
+		private final long lastModified;
+		private final String contentType;
+		private final String etag;
+
+		private Metadata(boolean exists, boolean directory, boolean readable, long length, long lastModified,
+				String contentType, String etag) {
+			this.exists = exists;
+			this.directory = directory;
+			this.readable = readable;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.etag = etag;
+		}
+	}
+
+}
@@ -0,0 +1,506 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The CompressionCache picks the content encoding of a response (gzip, br or none)
+ * from what the client accepts and what we have, and keeps the compressed content
+ * around so that each file is compressed once, not once per request.
+ * 1) If a precompressed sibling of the file exists (foo.html.br, foo.html.gz) and is
+ * 		not older than the file, that is sent as it is, without copying it
+ * 2) Otherwise, compressible types (text, scripts, XML, JSON, SVG) within the size
+ * 		limits are gzip-compressed on the fly, the first time they are asked for; if
+ * 		several requests ask for it at once, one compresses and the rest wait for it
+ * 3) The compressed content is kept in a size bounded cache; lookups take no lock, and
+ * 		eviction drops the least recently used of a small sample of entries, the way
+ * 		the file content cache does. An entry is only used while the file still has
+ * 		the last modified date and length it was compressed from
+ * 4) Picking the encoding (and so the entity tag) looks at the siblings once per request
+ * 		and does not compress anything, so a conditional request can be answered before
+ * 		any compression work is done
+ * 5) Callers that must not block (the event loops of the non-blocking engine) can ask
+ * 		for the compression to happen in the background instead; until it is done
+ * 		they send the file as it is
+ *
+ * There is no Brotli compressor in the JDK, so br is only ever served precompressed.
+ *
+ * NOTE: This is thread safe, and shared by all the threads of the server.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class CompressionCache {
+	// the content codings we know about
+	public static final String GZIP = "gzip";
+	public static final String BR = "br";
+
+	// files that compress to more than this fraction of their size are sent as they are
+	private static final double MIN_SAVING = 0.9;
+	// how many entries the eviction looks at to pick one
+	private static final int EVICTION_SAMPLE = 8;
+	// how stale a last used time may get before a hit writes it again
+	private static final long STAMP_RESOLUTION = 1000000;
+
+	// private variables
+	private IFileUtil fileUtil;
+	private long minFileSize;
+	private long maxFileSize;
+	private long maxCacheSize;
+	private AtomicLong size;
+	private ConcurrentHashMap<File, Compressed> compressed;
+	// where the eviction got to; only used while holding the lock
+	private Iterator<Map.Entry<File, Compressed>> hand;
+	// the compressions under way; only gzip is done on the fly, so the file is enough of a key
+	private ConcurrentHashMap<File, FutureTask<Compressed>> compressing;
+	// does the compressions nobody waits for, one at a time
+	private ExecutorService background;
+
+	public CompressionCache(IFileUtil fileUtil, long minFileSize, long maxFileSize, long maxCacheSize)
+			throws ApplicationException {
+		// sanity check the inputs
+		if (null == fileUtil)
+			throw new ApplicationException("File util cannot be null!");
+		this.fileUtil = fileUtil;
+
+		if (minFileSize < 0)
+			throw new ApplicationException("Invalid minimum compressed file size " + minFileSize);
+		this.minFileSize = minFileSize;
+
+		if (maxFileSize < 0)
+			throw new ApplicationException("Invalid maximum compressed file size " + maxFileSize);
+		this.maxFileSize = maxFileSize;
+
+		if (maxCacheSize < 0)
+			throw new ApplicationException("Invalid compression cache size " + maxCacheSize);
+		this.maxCacheSize = maxCacheSize;
+
+		size = new AtomicLong();
+		compressed = new ConcurrentHashMap<File, Compressed>();
+		compressing = new ConcurrentHashMap<File, FutureTask<Compressed>>();
+		// the thread is only started once it is needed
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "compression");
+				// this should never keep the application alive
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Decides what to send for the file: whether the response depends on Accept-Encoding
+	 * (i.e. needs a Vary header), and which content coding (and so which entity tag) to
+	 * use, if any. A null Accept-Encoding means the file has to be sent as it is. This
+	 * only looks at metadata, it never compresses; getVariant() does that, once the
+	 * caller knows it has to send the content.
+	 */
+	public Selection select(File file, String contentType, String acceptEncoding) {
+		// the siblings are looked at once, here
+		boolean br = hasSibling(file, BR);
+		boolean gzip = hasSibling(file, GZIP);
+		boolean compressible = isCompressible(contentType);
+		boolean varies = compressible || br || gzip;
+		if (!varies || null == acceptEncoding)
+			return new Selection(file, varies, null, null, null);
+
+		double brQuality = getQuality(acceptEncoding, BR);
+		double gzipQuality = getQuality(acceptEncoding, GZIP);
+
+		// what we have already compressed beats compressing, and br beats gzip when the client is indifferent
+		if (brQuality > 0 && brQuality >= gzipQuality && br)
+			return siblingSelection(file, BR);
+		if (gzipQuality > 0 && gzip)
+			return siblingSelection(file, GZIP);
+		if (brQuality > 0 && br)
+			return siblingSelection(file, BR);
+
+		if (gzipQuality > 0 && compressible && mayCompress(file))
+			return new Selection(file, true, GZIP, null, makeETag(fileUtil.getETag(file), GZIP));
+		return new Selection(file, true, null, null, null);
+	}
+
+	/*
+	 * Returns the variant picked by select(), compressing the file if need be, or null
+	 * if it turns out not to be worth it. If it has not been compressed yet and the
+	 * caller cannot wait, it is compressed in the background and null is returned.
+	 */
+	public Variant getVariant(Selection selection, boolean wait) throws ApplicationException {
+		if (null != selection.sibling)
+			return new Variant(selection.encoding, selection.etag, selection.sibling, null,
+					fileUtil.getContentLength(selection.sibling));
+		if (GZIP.equals(selection.encoding))
+			return compressedVariant(selection.file, wait);
+		return null;
+	}
+
+	/*
+	 * Returns the quality value the Accept-Encoding header gives to the coding: its own,
+	 * or that of *, or 0 if it is not acceptable
+	 */
+	public static double getQuality(String acceptEncoding, String coding) {
+		double wildcard = 0;
+		int start = 0;
+		while (start < acceptEncoding.length()) {
+			int comma = acceptEncoding.indexOf(',', start);
+			if (comma < 0)
+				comma = acceptEncoding.length();
+			int semicolon = acceptEncoding.indexOf(';', start);
+			int nameEnd = (semicolon >= 0 && semicolon < comma) ? semicolon : comma;
+			String name = acceptEncoding.substring(start, nameEnd).trim();
+			double quality = (nameEnd < comma) ? parseQuality(acceptEncoding.substring(nameEnd + 1, comma)) : 1;
+
+			if (name.equalsIgnoreCase(coding))
+				return quality;
+			if (name.equals("*"))
+				wildcard = quality;
+			start = comma + 1;
+		}
+		return wildcard;
+	}
+
+	public long getCachedBytes() {
+		return size.get();
+	}
+
+	public int getCachedFiles() {
+		return compressed.size();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	// whether compressing it on the fly might pay, as far as we can tell without trying
+	private boolean mayCompress(File file) {
+		long length = fileUtil.getContentLength(file);
+		if (length < minFileSize || length > maxFileSize)
+			return false;
+		// we tried already, and it was not worth it
+		Compressed entry = get(file);
+		return null == entry || null != entry.variant
+				|| !entry.isCurrent(length, fileUtil.getLastModifiedDate(file).getTime());
+	}
+
+	private static boolean isCompressible(String contentType) {
+		if (null == contentType)
+			return false;
+		return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("/xml")
+				|| contentType.endsWith("/json") || contentType.endsWith("/javascript");
+	}
+
+	// a sibling only counts if it is not older than the file it was made from
+	private boolean hasSibling(File file, String coding) {
+		File sibling = getSibling(file, coding);
+		return fileUtil.exists(sibling) && fileUtil.isReadable(sibling)
+				&& !fileUtil.getLastModifiedDate(sibling).before(fileUtil.getLastModifiedDate(file));
+	}
+
+	private static File getSibling(File file, String coding) {
+		return new File(file.getPath() + (coding.equals(GZIP) ? ".gz" : ".br"));
+	}
+
+	private Selection siblingSelection(File file, String coding) {
+		// its entity tag comes from the sibling, which may be regenerated without touching the file
+		File sibling = getSibling(file, coding);
+		return new Selection(file, true, coding, sibling, makeETag(fileUtil.getETag(sibling), coding));
+	}
+
+	private Variant compressedVariant(File file, boolean wait) throws ApplicationException {
+		long length = fileUtil.getContentLength(file);
+		long lastModified = fileUtil.getLastModifiedDate(file).getTime();
+		if (length < minFileSize || length > maxFileSize)
+			return null;
+
+		// compressed already (and still current)?
+		Compressed entry = get(file);
+		if (null == entry || !entry.isCurrent(length, lastModified)) {
+			if (!wait) {
+				compressLater(file, length, lastModified);
+				return null;
+			}
+			entry = compressOnce(file, length, lastModified);
+			// somebody else compressed a different version of it - do our own
+			if (!entry.isCurrent(length, lastModified)) {
+				entry = compress(file, length, lastModified);
+				put(file, entry);
+			}
+		}
+		return entry.variant;
+	}
+
+	// compresses the file, or waits for whoever is compressing it already
+	private Compressed compressOnce(File file, long length, long lastModified) throws ApplicationException {
+		FutureTask<Compressed> task = newCompression(file, length, lastModified);
+		FutureTask<Compressed> running = compressing.putIfAbsent(file, task);
+		if (null == running) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				compressing.remove(file, task);
+			}
+		}
+
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ApplicationException)
+				throw (ApplicationException) e.getCause();
+			throw new ApplicationException("Error compressing file: ", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApplicationException("Interrupted while waiting for compression: ", e);
+		}
+	}
+
+	// has the file compressed on the background thread, unless somebody is at it already
+	private void compressLater(final File file, long length, long lastModified) {
+		final FutureTask<Compressed> task = newCompression(file, length, lastModified);
+		if (null != compressing.putIfAbsent(file, task))
+			return;
+		try {
+			background.execute(new Runnable() {
+				public void run() {
+					// if it fails, the next request that can wait will try again
+					try {
+						task.run();
+					} finally {
+						compressing.remove(file, task);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			compressing.remove(file, task);
+		}
+	}
+
+	private FutureTask<Compressed> newCompression(final File file, final long length, final long lastModified) {
+		return new FutureTask<Compressed>(new Callable<Compressed>() {
+			public Compressed call() throws ApplicationException {
+				Compressed entry = compress(file, length, lastModified);
+				// in the cache before it stops being under way, so that nobody misses both
+				put(file, entry);
+				return entry;
+			}
+		});
+	}
+
+	private Compressed compress(File file, long length, long lastModified) throws ApplicationException {
+		// take the content from the file cache if it is there
+		ByteBuffer content = fileUtil.getContent(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) (length / 3) + 64);
+		long read;
+		try {
+			if (null == content)
+				content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			read = content.remaining();
+			// we only do this once per file, so it might as well be as small as it gets
+			GZIPOutputStream gzip = new GZIPOutputStream(out) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			if (content.hasArray()) {
+				gzip.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+			} else {
+				byte[] bytes = new byte[content.remaining()];
+				content.get(bytes);
+				gzip.write(bytes);
+			}
+			gzip.close();
+		} catch (IOException e) {
+			throw new ApplicationException("Error compressing file: ", e);
+		}
+
+		// the file changed while we were reading it - do not remember anything
+		if (read != length)
+			return new Compressed(-1, -1, null);
+
+		// not worth it - remember that, so we do not try again
+		if (out.size() > length * MIN_SAVING)
+			return new Compressed(length, lastModified, null);
+
+		ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+		return new Compressed(length, lastModified,
+				new Variant(GZIP, makeETag(fileUtil.getETag(file), GZIP), null, buffer, buffer.remaining()));
+	}
+
+	// a different representation needs a different entity tag
+	private static String makeETag(String etag, String coding) {
+		return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+	}
+
+	private Compressed get(File file) {
+		Compressed entry = compressed.get(file);
+		if (null == entry)
+			return null;
+		// a hot file would otherwise have every core writing to the same cache line
+		long now = System.nanoTime();
+		if (now - entry.lastUsed > STAMP_RESOLUTION)
+			entry.lastUsed = now;
+		return entry;
+	}
+
+	private void put(File file, Compressed entry) {
+		// it would never fit - just drop the old version (if any)
+		if (entry.size() > maxCacheSize) {
+			Compressed old = compressed.remove(file);
+			if (null != old)
+				size.addAndGet(-old.size());
+			return;
+		}
+
+		Compressed old = compressed.put(file, entry);
+		size.addAndGet(entry.size() - ((null == old) ? 0 : old.size()));
+		if (size.get() > maxCacheSize)
+			evict();
+	}
+
+	// drops the least recently used of a sample of entries, until everything fits
+	private synchronized void evict() {
+		while (size.get() > maxCacheSize) {
+			Map.Entry<File, Compressed> victim = null;
+			for (int i = 0; i < EVICTION_SAMPLE; i++) {
+				if (null == hand || !hand.hasNext())
+					hand = compressed.entrySet().iterator();
+				if (!hand.hasNext())
+					return;
+				Map.Entry<File, Compressed> candidate = hand.next();
+				if (null == victim || candidate.getValue().lastUsed < victim.getValue().lastUsed)
+					victim = candidate;
+			}
+			// somebody else may have removed or replaced it in the meantime
+			if (compressed.remove(victim.getKey(), victim.getValue()))
+				size.addAndGet(-victim.getValue().size());
+		}
+	}
+
+	private static double parseQuality(String parameters) {
+		// we only know about q=
+		String parameter = parameters.trim();
+		if (!parameter.startsWith("q=") && !parameter.startsWith("Q="))
+			return 1;
+		try {
+			return Double.parseDouble(parameter.substring(2).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/*
+	 * Helper classes
+	 */
+	// what select() decided for a request
+	public static final class Selection {
+		private final File file;
+		private final boolean varies;
+		private final String encoding;
+		private final File sibling;
+		private final String etag;
+
+		private Selection(File file, boolean varies, String encoding, File sibling, String etag) {
+			this.file = file;
+			this.varies = varies;
+			this.encoding = encoding;
+			this.sibling = sibling;
+			this.etag = etag;
+		}
+
+		// true if the response depends on Accept-Encoding
+		public boolean varies() {
+			return varies;
+		}
+
+		// the content coding to send, or null to send the file as it is
+		public String getEncoding() {
+			return encoding;
+		}
+
+		// the entity tag of the encoded variant, or null to use that of the file
+		public String getETag() {
+			return etag;
+		}
+	}
+
+	// an encoded version of a file: either a sibling file or compressed content in memory
+	public static final class Variant {
+		private final String encoding;
+		private final String etag;
+		private final File file;
+		private final ByteBuffer content;
+		private final long length;
+
+		private Variant(String encoding, String etag, File file, ByteBuffer content, long length) {
+			this.encoding = encoding;
+			this.etag = etag;
+			this.file = file;
+			this.content = content;
+			this.length = length;
+		}
+
+		public String getEncoding() {
+			return encoding;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		// the sibling file to send, or null if the content is in memory
+		public File getFile() {
+			return file;
+		}
+
+		// the content to send (shared: read it, don't modify it), or null if it is in a file
+		public ByteBuffer getContent() {
+			return (null == content) ? null : content.duplicate();
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+
+	// what we know about the compressed version of a file
+	private static final class Compressed {
+		private final long length;
+		private final long lastModified;
+		// null if it is not worth compressing
+		private final Variant variant;
+		// written without synchronization; an occasional lost update only makes the LRU less exact
+		private volatile long lastUsed;
+
+		private Compressed(long length, long lastModified, Variant variant) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.variant = variant;
+			this.lastUsed = System.nanoTime();
+		}
+
+		private boolean isCurrent(long length, long lastModified) {
+			return this.length == length && this.lastModified == lastModified;
+		}
+
+		private long size() {
+			return (null == variant) ? 0 : variant.length;
+		}
+	}
+
+}
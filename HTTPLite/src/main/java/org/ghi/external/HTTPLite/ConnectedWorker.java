@@ -1,43 +1,55 @@
 package org.ghi.external.HTTPLite;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.util.Date;
-import java.util.Optional;
-import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import rawhttp.core.RawHttp;
-import rawhttp.core.RawHttpRequest;
-import rawhttp.core.RawHttpResponse;
-import rawhttp.core.body.FileBody;
-
 /**
  * The ConnectedWorker is responsible for serving all the requests that come from
- * a connection. It currently serves only GET and HEAD requests.
- * It also respects the keep-alive flag.
- * 
- * The handling of the RawHttp requests and responses is based on the examples
- * at https://renatoathaydes.github.io/rawhttp/docs/low-level-api/
- * 
+ * a connection in the blocking engine. The requests themselves are served by a
+ * RequestHandler; the worker only reads them off the socket into a buffer for the
+ * RequestParser, sends the responses back, and loops for as long as the keep-alive
+ * flag is set. The ConnectionManager of the listener decides how long that is, and
+ * the timeouts of the socket make sure an idle or slow client cannot hold on to the
+ * thread for ever.
+ *
  * @author George Hadjiyiannis
  *
  */
 public class ConnectedWorker implements Runnable {
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
 	// private variables
 	private IApplicationInjector injector;
 	private Logger logger;
 	private Socket clientSocket;
+	private ConnectionManager connections;
 	private boolean keepalive;
-	private IFileUtil fileUtil;
+	private int requests;
+	private long parseTime;
+	private RequestHandler handler;
+	private RequestParser parser;
+	private HttpRequest request;
+	private ByteBuffer input;
+	private ResponseWriter writer;
+	private ReadableByteChannel inputChannel;
+	private WritableByteChannel outputChannel;
 
 	public ConnectedWorker(IApplicationInjector injector, Socket clientSocket)
 			throws ApplicationException {
+		// a connection on its own, with the default limits
+		this(injector, clientSocket, new ConnectionManager());
+	}
+
+	public ConnectedWorker(IApplicationInjector injector, Socket clientSocket, ConnectionManager connections)
+			throws ApplicationException {
 
 		// sanity check the inputs
 		if (null == injector)
@@ -48,24 +60,45 @@ public class ConnectedWorker implements Runnable {
 			throw new ApplicationException("Client socket is null!");
 		this.clientSocket = clientSocket;
 
+		if (null == connections)
+			throw new ApplicationException("Connection manager is null!");
+		this.connections = connections;
+
 		logger = LogManager.getLogger(ConnectedWorker.class);
-		
-		// create an IFileUtil we can use locally
-		fileUtil = this.injector.getFileUtil();
+
+		// create a RequestHandler we can use locally
+		handler = new RequestHandler(this.injector);
+		// and a parser, a request and a writer we can reuse for all the requests
+		parser = this.injector.getRequestParser();
+		request = new HttpRequest();
+		writer = new ResponseWriter();
+		// the input buffer is always kept in write mode (ready to read more into it)
+		input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
 	}
 
 	public void run() {
 		logger.debug("Connected...");
 
-		// lets create a parser for the protocol
-		RawHttp http = new RawHttp();
-
 		try {
+			// the head and the body of a response are separate writes; do not let the body wait for an ACK
+			clientSocket.setTcpNoDelay(true);
+			// for the status page and the access log
+			request.setRemoteAddress(clientSocket.getInetAddress());
+
+			// requests are read through the stream of the socket, so that its timeout applies
+			inputChannel = Channels.newChannel(clientSocket.getInputStream());
+			// bodies are sent through the channel of the socket (if it has one) to avoid copying
+			outputChannel = (null != clientSocket.getChannel()) ? clientSocket.getChannel()
+					: Channels.newChannel(clientSocket.getOutputStream());
+
+			// from now on the manager can close it for us, until the first request starts to arrive
+			connections.opened(clientSocket);
+
 			// loop as we may be servicing multiple requests if keep-alive is set
 			while (true) {
 
 				// serve a single request
-				serveSingleRequest(http);
+				serveSingleRequest();
 
 				// check and abide by the keep-alive flag
 				if (!keepalive)
@@ -77,271 +110,144 @@ public class ConnectedWorker implements Runnable {
 			logger.error("Internal server error while processing request: ", e);
 
 			// respond with 500 Internal Server Error
-			respondInternalServerError(http, e.getMessage());
+			try {
+				handler.respondInternalServerError(writer);
+				if (null != outputChannel)
+					writer.writeTo(outputChannel);
+			} catch (IOException i) {
+				// ignore - we were already sending a 500 and exiting!
+			}
 
 		} finally {
 			logger.debug("Exiting connection...");
 
+			// release any files we did not get to send
+			writer.clear();
+
 			// make sure we close the clientSocket no matter how we exit
+			connections.forget(clientSocket);
 			try {
 				if (!clientSocket.isClosed())
 					clientSocket.close();
 			} catch (IOException e) {
 				logger.error("Unknown error while closing client socket: ", e);
 			}
+			connections.closed();
 		}
 	}
 
 	/*
 	 * Private helper methods
 	 */
-	private void serveSingleRequest(RawHttp http) throws ApplicationException {
+	private void serveSingleRequest() throws ApplicationException {
 
 		// separate try catch blocks to be able to give informative messages
 
 		// parse the request
-		RawHttpRequest request;
 		try {
-			request = http.parseRequest(clientSocket.getInputStream());
-		} catch (IOException e) {
-			throw new ApplicationException("Error while parsing request: ", e);
-		}
-
-		// check the keep-alive flag
-		keepalive = hasRequestedKeepalive(request);
-
-		// check the requested method
-		String method = request.getMethod();
-		// we can only process GET and HEAD requests
-		if (method.contentEquals("GET") || method.equals("HEAD")) {
-
-			// get the path, URL decoded and with the query string removed
-			String path = request.getUri().getPath();
-			
-			/*
-			 * I was planning to remove /../ sequences to make sure that one cannot climb out
-			 * of document root but it turns out RawHttp already takes care of that
-			 */
-			
-			logger.debug("Serving from path " + path);
-
-			// lets check the file out a bit
-			File file = fileUtil.getFileFromPath(path);
-
-			// if it does not exists respond with 404 Not Found
-			if (!fileUtil.exists(file)) {
-				respondNotFound(http);
+			if (!readRequest()) {
+				// the client closed the connection (or we did) - nothing more to serve
+				keepalive = false;
 				return;
 			}
-
-			// if it is not readable respond with 403 Forbidden
-			if (!fileUtil.isReadable(file)) {
-				respondForbidden(http);
+			// serve it, and remember whether the client wants us to keep going (and we let it)
+			requests++;
+			keepalive = handler.serveRequest(request, writer, connections.mayKeepAlive(requests));
+		} catch (RequestParseException e) {
+			logger.debug("Bad request: {}", e.getMessage());
+			// whatever the parser got out of it is not to be trusted
+			request.reset();
+			handler.respondBadRequest(writer, e);
+			keepalive = false;
+		} catch (SocketTimeoutException e) {
+			// the client took too long - just hang up
+			logger.debug("Connection timed out");
+			keepalive = false;
+			return;
+		} catch (IOException e) {
+			// closed under us while idle (draining, or making room) - not an error
+			if (clientSocket.isClosed()) {
+				keepalive = false;
 				return;
 			}
-
-			// now send the response
-			if (method.equals("GET"))
-				respondOKWithContent(http, file);
-			else
-				respondOKWithoutContent(http, file);
-
-		} else {
-			// respond with 405 Method Not Allowed
-			respondMethodNotAllowed(http);
-		}
-	}
-
-	private boolean hasRequestedKeepalive(RawHttpRequest request) {
-		Optional<String> connectionHeader = request.getHeaders().getFirst("Connection");
-		// if the header is not there, no keep-alive
-		if (!connectionHeader.isPresent())
-			return false;
-		// true if the header is keep-alive
-		return connectionHeader.get().equals("keep-alive");
-	}
-
-	/*
-	 * Style note on respond methods: From a strict, best practice perspective, this would appear
-	 * to have a high percentage of replicated code. However, while debugging I found that it is easier
-	 * to read what the response would look like when all of it is expanded like this, rather than 
-	 * packing it all into one or two methods with lots of conditionals. I have opted for readability
-	 * above compactness. The behavior is not expected to change, since it is defined in the protocol.
-	 */
-	
-	// respond with 200 OK (plus content)
-	private void respondOKWithContent(RawHttp http, File file) throws ApplicationException {
-		// get the content type from the file itself
-		String contentType = fileUtil.getContentType(file);
-		long contentLength = fileUtil.getContentLength(file);
-		// get the last modified date
-		Date lastModified = fileUtil.getLastModifiedDate(file);
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// if we have a Last Modified date we need to insert it
-		String lastModifiedHeader = "Last-Modified: " + lastModified + "\r\n";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 200 OK \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + 
-				lastModifiedHeader + "\r\n").withBody(new FileBody(file, contentType));
-		// send it
-		try {
-			response.writeTo(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			throw new ApplicationException("Error sending response: ", e);
-		}
-	}
-
-	// respond with 200 OK (without content)
-	private void respondOKWithoutContent(RawHttp http, File file) throws ApplicationException {
-		// get the content type from the file itself
-		String contentType = fileUtil.getContentType(file);
-		long contentLength = 0; // we are not sending any content
-		// get the last modified date
-		Date lastModified = fileUtil.getLastModifiedDate(file);
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// if we have a Last Modified date we need to insert it
-		String lastModifiedHeader = "Last-Modified: " + lastModified + "\r\n";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 200 OK \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + 
-				lastModifiedHeader + "\r\n");
-		// send it
-		try {
-			response.writeTo(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			throw new ApplicationException("Error sending response: ", e);
+			throw new ApplicationException("Error while parsing request: ", e);
 		}
-	}
 
-	// respond with 403 Forbidden
-	private void respondForbidden(RawHttp http) throws ApplicationException {
-		// get the content type from the file itself
-		String contentType = "text/plain";
-		long contentLength = 0; 
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 403 Forbidden \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + "\r\n");
-		// send it
+		// send the response
 		try {
-			response.writeTo(clientSocket.getOutputStream());
+			long writeStart = System.nanoTime();
+			writer.writeTo(outputChannel);
+			handler.served(request, writer, parseTime, System.nanoTime() - writeStart);
 		} catch (IOException e) {
+			// closed under us (the drain took too long) - not an error
+			if (clientSocket.isClosed()) {
+				keepalive = false;
+				return;
+			}
 			throw new ApplicationException("Error sending response: ", e);
+		} finally {
+			writer.clear();
 		}
 	}
 
-	// respond with 404 Not Found
-	private void respondNotFound(RawHttp http) throws ApplicationException {
-		// get the content type from the file itself
-		String contentType = "text/plain";
-		long contentLength = 0; 
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 404 Not Found \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + "\r\n");
-		// send it
-		try {
-			response.writeTo(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			throw new ApplicationException("Error sending response: ", e);
+	// reads until the parser has a complete request, returns false if the client closed the connection
+	private boolean readRequest() throws RequestParseException, IOException {
+		/*
+		 * Before and between requests the connection is idle: it can be closed to make room
+		 * for others, and the client gets the idle timeout to start the next one. Once it
+		 * has, the whole request has to arrive within the read timeout.
+		 */
+		boolean idle = 0 == input.position();
+		long deadline = 0;
+		if (idle) {
+			// a new connection was marked idle already, when it was opened
+			if (requests > 0 && !connections.idle(clientSocket))
+				return false;
+			clientSocket.setSoTimeout(connections.getIdleTimeout());
+		} else {
+			deadline = System.currentTimeMillis() + connections.getReadTimeout();
 		}
-	}
 
-	// respond with 405 Method Not Allowed
-	private void respondMethodNotAllowed(RawHttp http) throws ApplicationException {
-		// get the content type from the file itself
-		String contentType = "text/plain";
-		long contentLength = 0; 
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 405 Method Not Allowed \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + "\r\n");
-		// send it
-		try {
-			response.writeTo(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			throw new ApplicationException("Error sending response: ", e);
+		// only the time spent parsing counts, not the time spent waiting for the client
+		parseTime = 0;
+		while (true) {
+			// there may already be a (pipelined) request in the buffer
+			input.flip();
+			boolean complete;
+			long parseStart = System.nanoTime();
+			try {
+				complete = parser.parse(input, request);
+			} finally {
+				parseTime += System.nanoTime() - parseStart;
+				input.compact();
+			}
+			if (complete)
+				return true;
+
+			// make room for more if we need to
+			if (!input.hasRemaining())
+				input = parser.grow(input);
+
+			// a client sending a byte at a time does not get the read timeout for every byte
+			if (!idle)
+				setTimeoutUntil(deadline);
+			if (inputChannel.read(input) < 0)
+				return false;
+
+			// not idle any more, unless the manager closed it first
+			if (idle) {
+				idle = false;
+				if (!connections.busy(clientSocket))
+					return false;
+				deadline = System.currentTimeMillis() + connections.getReadTimeout();
+			}
 		}
 	}
 
-	// respond with 500 Internal Server Error
-	private void respondInternalServerError(RawHttp http, String msg) {
-		// the message can be null - fix it
-		msg = (null == msg) ? "" : msg;
-		// get the content type from the file itself
-		String contentType = "text/plain";
-		long contentLength = msg.length(); 
-
-		// get the date and time of the response
-		String dateString = RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-
-		// if keep-alive is set we need to insert the header in the response
-		String connectionHeader = keepalive ? "Connection: keep-alive\r\n" : "";
-
-		// construct the response
-		RawHttpResponse<?> response = http.parseResponse(
-				"HTTP/1.1 500 Internal Server Error \r\n" + 
-				"Content-Type: " + contentType + "\r\n" + 
-				"Content-Length: " + contentLength + "\r\n" + 
-				"Server: RawHTTP\r\n" + "Date: " + dateString + "\r\n" + 
-				connectionHeader + "\r\n");
-		// send it
-		try {
-			response.writeTo(clientSocket.getOutputStream());
-		} catch (IOException e) {
-			// ignore - we were already sending a 500 and exiting!
-		}
+	private void setTimeoutUntil(long deadline) throws IOException {
+		long left = deadline - System.currentTimeMillis();
+		if (left <= 0)
+			throw new SocketTimeoutException("Request not complete within the read timeout");
+		clientSocket.setSoTimeout((int) left);
 	}
 }
@@ -0,0 +1,289 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ConnectionManager keeps track of the connections of a listener, and decides
+ * how long each of them gets to live.
+ * 1) Admission: a connection is only accepted while there are fewer than the maximum
+ * 		number open; anything over that gets a fast 503 Service Unavailable with a
+ * 		Retry-After header, rather than waiting in line for a thread
+ * 2) Keep-alive: a connection is kept open for up to the maximum number of requests,
+ * 		but not while we are draining, nor (in the blocking engine) while other
+ * 		connections are waiting for a thread
+ * 3) Timeouts: how long a connection may sit idle before and between requests, and
+ * 		how long a request may take to arrive once it has started
+ * 4) Draining: once the listener stops accepting, idle connections are closed right
+ * 		away, and busy ones as soon as their response is out
+ *
+ * NOTE: This is thread safe. Each listener has its own, shared by all of its threads.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class ConnectionManager {
+	// defaults for the limits
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static final int DEFAULT_MAX_REQUESTS = 100;
+	public static final int DEFAULT_IDLE_TIMEOUT = 5000;
+	public static final int DEFAULT_READ_TIMEOUT = 20000;
+	public static final int DEFAULT_RETRY_AFTER = 1;
+	public static final int DEFAULT_SHUTDOWN_TIMEOUT = 10000;
+
+	// private variables
+	private int maxConnections;
+	private int maxRequests;
+	private int idleTimeout;
+	private int readTimeout;
+	private int retryAfter;
+	private int shutdownTimeout;
+	private int threads;
+	private volatile boolean draining;
+	private AtomicInteger open;
+	private Set<Closeable> idle;
+	private Set<Closeable> busy;
+	private ResponseWriter rejectWriter;
+	// statistics
+	private LongAdder accepted;
+	private LongAdder rejected;
+
+	public ConnectionManager() {
+		maxConnections = DEFAULT_MAX_CONNECTIONS;
+		maxRequests = DEFAULT_MAX_REQUESTS;
+		idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		readTimeout = DEFAULT_READ_TIMEOUT;
+		retryAfter = DEFAULT_RETRY_AFTER;
+		shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+		init();
+	}
+
+	public ConnectionManager(int maxConnections, int maxRequests, int idleTimeout, int readTimeout,
+			int retryAfter, int shutdownTimeout) throws ApplicationException {
+		// sanity check the inputs
+		if (maxConnections < 1)
+			throw new ApplicationException("Invalid maximum number of connections " + maxConnections);
+		this.maxConnections = maxConnections;
+
+		if (maxRequests < 1)
+			throw new ApplicationException("Invalid maximum number of requests per connection " + maxRequests);
+		this.maxRequests = maxRequests;
+
+		if (idleTimeout < 1)
+			throw new ApplicationException("Invalid idle timeout " + idleTimeout);
+		this.idleTimeout = idleTimeout;
+
+		if (readTimeout < 1)
+			throw new ApplicationException("Invalid read timeout " + readTimeout);
+		this.readTimeout = readTimeout;
+
+		if (retryAfter < 0)
+			throw new ApplicationException("Invalid retry after " + retryAfter);
+		this.retryAfter = retryAfter;
+
+		if (shutdownTimeout < 0)
+			throw new ApplicationException("Invalid shutdown timeout " + shutdownTimeout);
+		this.shutdownTimeout = shutdownTimeout;
+
+		init();
+	}
+
+	/*
+	 * Admission: returns true if the (newly accepted) connection may go on, in which
+	 * case closed() must be called for it eventually
+	 */
+	public boolean tryOpen() {
+		while (true) {
+			int count = open.get();
+			if (draining || count >= maxConnections)
+				return false;
+			if (open.compareAndSet(count, count + 1)) {
+				accepted.increment();
+				return true;
+			}
+		}
+	}
+
+	public void closed() {
+		open.decrementAndGet();
+	}
+
+	/*
+	 * Sends a 503 Service Unavailable (with Retry-After) to a connection we will not
+	 * serve, and closes it. This is meant to be cheap: no request is read, and the
+	 * response is written on the accepting thread. The close lingers (on a thread of
+	 * its own) until the client has sent its request and closed its end, or the
+	 * client would get a reset instead of the response.
+	 */
+	public synchronized void reject(SocketChannel clientChannel) {
+		rejected.increment();
+		try {
+			rejectWriter.writeServiceUnavailable(retryAfter);
+			rejectWriter.writeTo(clientChannel);
+			clientChannel.shutdownOutput();
+			LingeringCloser.getInstance().close(clientChannel);
+		} catch (IOException e) {
+			// the client is not listening - no need to wait for it
+			closeQuietly(clientChannel);
+		} finally {
+			rejectWriter.clear();
+		}
+	}
+
+	/*
+	 * Returns true if the connection may be kept open after the response to its
+	 * request-th request
+	 */
+	public boolean mayKeepAlive(int requests) {
+		return !draining && requests < maxRequests && !isOverloaded();
+	}
+
+	/*
+	 * The blocking engine has a thread per connection: when connections are waiting
+	 * for a thread, the ones that are only holding on to one (idle) should let it go
+	 */
+	public boolean isOverloaded() {
+		return threads > 0 && open.get() > threads;
+	}
+
+	/*
+	 * The blocking engine marks its connections idle while they wait for the next
+	 * request (so that they can be closed under load or when draining), and busy
+	 * while serving one. Returns false if the connection should be closed instead.
+	 */
+	public boolean idle(Closeable connection) {
+		busy.remove(connection);
+		idle.add(connection);
+		// drain() may have missed it
+		if (draining || isOverloaded()) {
+			idle.remove(connection);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The blocking engine marks a new connection idle too, until its first request
+	 * starts to arrive, so that one that connects and sends nothing can be closed to
+	 * make room. Unlike idle(), it is not turned away for the load: it has waited for
+	 * its thread already.
+	 */
+	public void opened(Closeable connection) {
+		idle.add(connection);
+	}
+
+	/*
+	 * Returns true if the connection was idle. Taking it out of the idle set is what
+	 * closeIdle() and drain() do too, and only one of them gets it: for a connection
+	 * that was marked idle, false means it has been closed under us, and whatever was
+	 * read from it has to be thrown away.
+	 */
+	public boolean busy(Closeable connection) {
+		boolean wasIdle = idle.remove(connection);
+		busy.add(connection);
+		return wasIdle;
+	}
+
+	public void forget(Closeable connection) {
+		idle.remove(connection);
+		busy.remove(connection);
+	}
+
+	/*
+	 * Closes one idle connection (if there is one), to free its thread for a waiting one
+	 */
+	public void closeIdle() {
+		for (Closeable connection : idle) {
+			// its worker may be taking it back at the same time
+			if (idle.remove(connection)) {
+				closeQuietly(connection);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Stops admitting connections and keeping them alive, and closes the idle ones
+	 */
+	public void drain() {
+		draining = true;
+		for (Closeable connection : idle) {
+			if (idle.remove(connection))
+				closeQuietly(connection);
+		}
+	}
+
+	/*
+	 * Closes every connection we know of, busy or not (when the drain takes too long)
+	 */
+	public void closeAll() {
+		drain();
+		for (Iterator<Closeable> connections = busy.iterator(); connections.hasNext();) {
+			closeQuietly(connections.next());
+			connections.remove();
+		}
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	public long getAcceptedConnections() {
+		return accepted.sum();
+	}
+
+	public long getRejectedConnections() {
+		return rejected.sum();
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/*
+	 * The blocking engine tells us how many threads it has (0, the default, means
+	 * connections do not hold on to threads)
+	 */
+	void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void init() {
+		open = new AtomicInteger();
+		idle = ConcurrentHashMap.newKeySet();
+		busy = ConcurrentHashMap.newKeySet();
+		rejectWriter = new ResponseWriter();
+		accepted = new LongAdder();
+		rejected = new LongAdder();
+	}
+
+	private static void closeQuietly(Closeable connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// ignore - there's nothing we can do
+		}
+	}
+
+}
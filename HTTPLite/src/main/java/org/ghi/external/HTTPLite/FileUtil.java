@@ -2,6 +2,7 @@ package org.ghi.external.HTTPLite;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.util.Date;
 
@@ -62,4 +63,23 @@ public class FileUtil implements IFileUtil {
 		return new Date(file.lastModified());
 	}
 
+	public String getETag(File file) {
+		return makeETag(file.length(), file.lastModified());
+	}
+
+	/*
+	 * The entity tag of a file is just its last modified time (in milliseconds) and
+	 * length, so anyone who knows those can tell whether a tag is still current
+	 */
+	public static String makeETag(long length, long lastModified) {
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+	}
+
+	/*
+	 * We do not keep anything in memory - the caller reads the file itself
+	 */
+	public ByteBuffer getContent(File file) {
+		return null;
+	}
+
 }
@@ -28,6 +28,37 @@ public class HTTPLite
 	public static final String KEY_PORT = "port";
 	public static final String KEY_POOl_SIZE = "poolSize";
 	public static final String KEY_DOCUMENT_ROOT = "documentRoot";
+	public static final String KEY_ENGINE = "engine";
+	public static final String KEY_EVENT_LOOPS = "eventLoops";
+	public static final String KEY_FILE_CACHE_ENABLED = "fileCacheEnabled";
+	public static final String KEY_FILE_CACHE_SIZE = "fileCacheSize";
+	public static final String KEY_FILE_CACHE_MAX_FILE_SIZE = "fileCacheMaxFileSize";
+	public static final String KEY_FILE_CACHE_MAX_ENTRIES = "fileCacheMaxEntries";
+	public static final String KEY_FILE_CACHE_MAPPED_SIZE = "fileCacheMappedSize";
+	public static final String KEY_FILE_CACHE_MAPPED_MAX_FILE_SIZE = "fileCacheMappedMaxFileSize";
+	public static final String KEY_REQUEST_LINE_MAX_SIZE = "requestLineMaxSize";
+	public static final String KEY_REQUEST_HEADER_MAX_SIZE = "requestHeaderMaxSize";
+	public static final String KEY_REQUEST_HEADER_MAX_COUNT = "requestHeaderMaxCount";
+	public static final String KEY_COMPRESSION_ENABLED = "compressionEnabled";
+	public static final String KEY_COMPRESSION_MIN_SIZE = "compressionMinSize";
+	public static final String KEY_COMPRESSION_MAX_FILE_SIZE = "compressionMaxFileSize";
+	public static final String KEY_COMPRESSION_CACHE_SIZE = "compressionCacheSize";
+	public static final String KEY_MAX_CONNECTIONS = "maxConnections";
+	public static final String KEY_CONNECTION_BACKLOG = "connectionBacklog";
+	public static final String KEY_MAX_KEEPALIVE_REQUESTS = "maxKeepAliveRequests";
+	public static final String KEY_KEEPALIVE_TIMEOUT = "keepAliveTimeout";
+	public static final String KEY_READ_TIMEOUT = "readTimeout";
+	public static final String KEY_RETRY_AFTER = "retryAfter";
+	public static final String KEY_SHUTDOWN_TIMEOUT = "shutdownTimeout";
+	public static final String KEY_STATUS_PATH = "statusPath";
+	public static final String KEY_STATUS_REMOTE_ACCESS = "statusRemoteAccess";
+	public static final String KEY_ACCESS_LOG = "accessLog";
+	public static final String KEY_ACCESS_LOG_FORMAT = "accessLogFormat";
+	public static final String KEY_ACCESS_LOG_BUFFER_SIZE = "accessLogBufferSize";
+	
+	// and for the values of the engine parameter
+	public static final String ENGINE_BLOCKING = "blocking";
+	public static final String ENGINE_NIO = "nio";
 	
     public static void main( String[] args )
     {
@@ -47,14 +78,32 @@ public class HTTPLite
 	    	int poolSize = Integer.valueOf(properties.getProperty(KEY_POOl_SIZE, "10"));
 	    	String documentRoot = properties.getProperty(KEY_DOCUMENT_ROOT, "/var/httpd");
 	    	
-	    	// now let's create our injector
-			IApplicationInjector injector = new ApplicationInjector(documentRoot);
+	    	// now let's create our injector (it will pick up the rest of the configuration)
+			IApplicationInjector injector = new ApplicationInjector(documentRoot, properties);
+			
+			// get a ServerListener from the injector
+			final IServerListener serverListener = injector.getServerListener(port, poolSize);
+			
+			// on Ctrl-C or kill, stop accepting and drain the connections before the JVM goes away
+			final Thread mainThread = Thread.currentThread();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					serverListener.stop();
+					try {
+						mainThread.join();
+					} catch (InterruptedException e) {
+						// ignore - we are going away anyway
+					}
+				}
+			});
 			
-			// get a ServerListener from the injector, and start it up
-			Runnable serverListener = injector.getServerListener(port, poolSize);
+			// and start it up; this returns once it has stopped and drained
 			serverListener.run();
 			
-			// note that currently this has no real way of shutting down other than error
+			// the responses are all out, so their lines can go out too
+			AccessLog accessLog = injector.getAccessLog();
+			if (null != accessLog)
+				accessLog.close();
 			
 		} catch (ApplicationException e) {
 			logger.error("Failed to initialize correctly: ", e);
@@ -0,0 +1,204 @@
+package org.ghi.external.HTTPLite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * Dates the way HTTP wants them (RFC 7231 IMF-fixdate, the fixed length form of
+ * RFC 1123), e.g. "Sun, 06 Nov 1994 08:49:37 GMT".
+ * 1) It formats dates straight into a ByteBuffer, without going through Strings
+ * 		or DateTimeFormatter
+ * 2) It keeps the bytes of the current date around, shared by all the threads, and
+ * 		only formats them again when the second changes
+ * 3) It parses the dates clients send back (If-Modified-Since, If-Range) in any of
+ * 		the three formats HTTP allows, the fixed length one without DateTimeFormatter
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public final class HttpDate {
+	// the formatted length never changes
+	public static final int LENGTH = 29;
+
+	private static final byte[][] DAYS = {
+			ascii("Thu"), ascii("Fri"), ascii("Sat"), ascii("Sun"), ascii("Mon"), ascii("Tue"), ascii("Wed") };
+	private static final byte[][] MONTHS = {
+			ascii("Jan"), ascii("Feb"), ascii("Mar"), ascii("Apr"), ascii("May"), ascii("Jun"),
+			ascii("Jul"), ascii("Aug"), ascii("Sep"), ascii("Oct"), ascii("Nov"), ascii("Dec") };
+
+	// the two obsolete formats we still have to accept, e.g. "Sunday, 06-Nov-94 08:49:37 GMT"
+	private static final DateTimeFormatter RFC_850 = new DateTimeFormatterBuilder()
+			.appendPattern("EEEE, dd-MMM-").appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+			.appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US);
+	// and "Sun Nov  6 08:49:37 1994"
+	private static final DateTimeFormatter ASCTIME = new DateTimeFormatterBuilder()
+			.appendPattern("EEE MMM ").padNext(2).appendValue(ChronoField.DAY_OF_MONTH)
+			.appendPattern(" HH:mm:ss yyyy").toFormatter(Locale.US);
+
+	// the shared clock; replaced (never modified) at most once per second
+	private static volatile CurrentDate current = new CurrentDate(Long.MIN_VALUE, new byte[LENGTH]);
+
+	private HttpDate() {
+		// static methods only
+	}
+
+	/*
+	 * Returns the bytes of the current date. The array is shared: don't modify it.
+	 */
+	public static byte[] now() {
+		long second = Math.floorDiv(System.currentTimeMillis(), 1000L);
+		CurrentDate date = current;
+		if (date.second != second) {
+			// more than one thread may get here at the turn of the second, which is harmless
+			ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+			write(buffer, second * 1000);
+			date = new CurrentDate(second, buffer.array());
+			current = date;
+		}
+		return date.bytes;
+	}
+
+	/*
+	 * Writes the date (milliseconds since the epoch) into the buffer
+	 */
+	public static void write(ByteBuffer buffer, long millis) {
+		long seconds = Math.floorDiv(millis, 1000L);
+		long days = Math.floorDiv(seconds, 86400L);
+		int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+
+		// 1970-01-01 was a Thursday
+		buffer.put(DAYS[(int) Math.floorMod(days, 7L)]);
+		buffer.put((byte) ',').put((byte) ' ');
+
+		/*
+		 * Convert days to year, month and day of month; this is the civil_from_days
+		 * algorithm from http://howardhinnant.github.io/date_algorithms.html
+		 */
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097L);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long shiftedMonth = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+		int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		putTwoDigits(buffer, day);
+		buffer.put((byte) ' ');
+		buffer.put(MONTHS[month - 1]);
+		buffer.put((byte) ' ');
+		putTwoDigits(buffer, (int) (year / 100));
+		putTwoDigits(buffer, (int) (year % 100));
+		buffer.put((byte) ' ');
+		putTwoDigits(buffer, secondOfDay / 3600);
+		buffer.put((byte) ':');
+		putTwoDigits(buffer, secondOfDay / 60 % 60);
+		buffer.put((byte) ':');
+		putTwoDigits(buffer, secondOfDay % 60);
+		buffer.put((byte) ' ').put((byte) 'G').put((byte) 'M').put((byte) 'T');
+	}
+
+	/*
+	 * Formats the date as a String, for the few places that need one
+	 */
+	public static String format(long millis) {
+		ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+		write(buffer, millis);
+		return new String(buffer.array(), StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * Parses a date sent by a client, returning milliseconds since the epoch, or -1
+	 * if it is not a valid HTTP date (in which case the header should be ignored)
+	 */
+	public static long parse(String date) {
+		if (null == date)
+			return -1;
+		if (date.length() == LENGTH)
+			return parseFixdate(date);
+		try {
+			DateTimeFormatter formatter = (date.indexOf('-') > 0) ? RFC_850 : ASCTIME;
+			return LocalDateTime.parse(date, formatter).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	// parses "Sun, 06 Nov 1994 08:49:37 GMT"; the day of the week is not checked
+	private static long parseFixdate(String date) {
+		if (date.charAt(3) != ',' || date.charAt(4) != ' ' || date.charAt(7) != ' ' || date.charAt(11) != ' '
+				|| date.charAt(16) != ' ' || date.charAt(19) != ':' || date.charAt(22) != ':'
+				|| !date.endsWith(" GMT"))
+			return -1;
+
+		int month = -1;
+		for (int i = 0; i < MONTHS.length; i++) {
+			if (date.charAt(8) == MONTHS[i][0] && date.charAt(9) == MONTHS[i][1] && date.charAt(10) == MONTHS[i][2])
+				month = i + 1;
+		}
+		int day = digits(date, 5, 2);
+		int year = digits(date, 12, 4);
+		int hour = digits(date, 17, 2);
+		int minute = digits(date, 20, 2);
+		int second = digits(date, 23, 2);
+		if (month < 0 || day < 1 || day > 31 || year < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0 || second > 60)
+			return -1;
+
+		/*
+		 * Convert year, month and day of month to days; this is the days_from_civil
+		 * algorithm from the same place as civil_from_days (see write)
+		 */
+		long y = (month <= 2) ? year - 1 : year;
+		long era = Math.floorDiv(y, 400L);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097 + dayOfEra - 719468;
+
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	// returns the value of count decimal digits, or -1 if they are not all digits
+	private static int digits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static void putTwoDigits(ByteBuffer buffer, int value) {
+		buffer.put((byte) ('0' + value / 10));
+		buffer.put((byte) ('0' + value % 10));
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static final class CurrentDate {
+		private final long second;
+		private final byte[] bytes;
+
+		private CurrentDate(long second, byte[] bytes) {
+			this.second = second;
+			this.bytes = bytes;
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.ghi.external.HTTPLite;
+
+import java.net.InetAddress;
+
+/**
+ * The HttpRequest holds what we need to know about a request, as parsed by the
+ * RequestParser: the method, the (decoded and normalized) path, the framing of the
+ * body and the few headers that change the response. Everything else in the request
+ * is skipped over without being turned into Strings, unless the parser has been asked
+ * to keep what the access log needs (the request target, Referer and User-Agent).
+ *
+ * NOTE: A request is not thread safe. Each connection gets its own and the parser
+ * fills it in again (reset) for every request.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class HttpRequest {
+	// the common methods, so that parsing them does not allocate
+	public static final String GET = "GET";
+	public static final String HEAD = "HEAD";
+
+	// private variables
+	private String method;
+	private String path;
+	private String query;
+	private boolean http11;
+	private boolean connectionKeepAlive;
+	private boolean connectionClose;
+	private long contentLength;
+	private boolean chunked;
+	private String ifModifiedSince;
+	private String ifNoneMatch;
+	private String range;
+	private String ifRange;
+	private String acceptEncoding;
+	private String target;
+	private String referer;
+	private String userAgent;
+	// this belongs to the connection, so it outlives reset()
+	private InetAddress remoteAddress;
+
+	public HttpRequest() {
+		reset();
+	}
+
+	public void reset() {
+		method = null;
+		path = null;
+		query = null;
+		http11 = false;
+		connectionKeepAlive = false;
+		connectionClose = false;
+		contentLength = 0;
+		chunked = false;
+		ifModifiedSince = null;
+		ifNoneMatch = null;
+		range = null;
+		ifRange = null;
+		acceptEncoding = null;
+		target = null;
+		referer = null;
+		userAgent = null;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/*
+	 * The path with the query removed, percent-decoded and with any . and .. segments
+	 * removed, so it always starts with / and can never climb above it
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	// the query string (without the ?), or null if there is none
+	public String getQuery() {
+		return query;
+	}
+
+	public boolean isHttp11() {
+		return http11;
+	}
+
+	// true if the Connection header has the keep-alive option
+	public boolean isConnectionKeepAlive() {
+		return connectionKeepAlive;
+	}
+
+	// true if the Connection header has the close option
+	public boolean isConnectionClose() {
+		return connectionClose;
+	}
+
+	/*
+	 * The length of the request body, or -1 if we cannot tell where it ends (it
+	 * is chunked), in which case the connection cannot be used for anything else
+	 */
+	public long getContentLength() {
+		return chunked ? -1 : contentLength;
+	}
+
+	public String getIfModifiedSince() {
+		return ifModifiedSince;
+	}
+
+	public String getIfNoneMatch() {
+		return ifNoneMatch;
+	}
+
+	public String getRange() {
+		return range;
+	}
+
+	public String getIfRange() {
+		return ifRange;
+	}
+
+	public String getAcceptEncoding() {
+		return acceptEncoding;
+	}
+
+	/*
+	 * The request target as it was sent, and the Referer and User-Agent headers; these
+	 * are only kept for the access log (see RequestParser)
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	public String getReferer() {
+		return referer;
+	}
+
+	public String getUserAgent() {
+		return userAgent;
+	}
+
+	// the address of the client, or null if it is not known
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/*
+	 * Only the RequestParser fills in the request
+	 */
+	void setMethod(String method) {
+		this.method = method;
+	}
+
+	void setPath(String path) {
+		this.path = path;
+	}
+
+	void setQuery(String query) {
+		this.query = query;
+	}
+
+	void setHttp11(boolean http11) {
+		this.http11 = http11;
+	}
+
+	void setConnectionKeepAlive(boolean connectionKeepAlive) {
+		this.connectionKeepAlive = connectionKeepAlive;
+	}
+
+	void setConnectionClose(boolean connectionClose) {
+		this.connectionClose = connectionClose;
+	}
+
+	void setContentLength(long contentLength) {
+		this.contentLength = contentLength;
+	}
+
+	void setChunked(boolean chunked) {
+		this.chunked = chunked;
+	}
+
+	void setIfModifiedSince(String ifModifiedSince) {
+		this.ifModifiedSince = ifModifiedSince;
+	}
+
+	void setIfNoneMatch(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	void setRange(String range) {
+		this.range = range;
+	}
+
+	void setIfRange(String ifRange) {
+		this.ifRange = ifRange;
+	}
+
+	void setAcceptEncoding(String acceptEncoding) {
+		this.acceptEncoding = acceptEncoding;
+	}
+
+	void setTarget(String target) {
+		this.target = target;
+	}
+
+	void setReferer(String referer) {
+		this.referer = referer;
+	}
+
+	void setUserAgent(String userAgent) {
+		this.userAgent = userAgent;
+	}
+
+	// except for this one, which the connection fills in
+	void setRemoteAddress(InetAddress remoteAddress) {
+		this.remoteAddress = remoteAddress;
+	}
+
+}
@@ -10,10 +10,25 @@ import java.net.Socket;
  */
 public interface IApplicationInjector {
 	
-	public Runnable getServerListener(int port, int poolSize) throws ApplicationException;
+	public IServerListener getServerListener(int port, int poolSize) throws ApplicationException;
 	
-	public Runnable getWorker(Socket socket) throws ApplicationException;
+	public Runnable getWorker(Socket socket, ConnectionManager connections) throws ApplicationException;
 	
 	public IFileUtil getFileUtil() throws ApplicationException;
+	
+	public RequestParser getRequestParser() throws ApplicationException;
+	
+	public ConnectionManager getConnectionManager() throws ApplicationException;
+	
+	// null if compression is switched off
+	public CompressionCache getCompressionCache() throws ApplicationException;
+	
+	public ServerMetrics getMetrics();
+	
+	// null if the status page is switched off
+	public StatusPage getStatusPage() throws ApplicationException;
+	
+	// null if there is no access log
+	public AccessLog getAccessLog() throws ApplicationException;
 
 }
@@ -1,6 +1,7 @@
 package org.ghi.external.HTTPLite;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 
@@ -8,7 +9,8 @@ import java.util.Date;
  * The interface to a small utility to abstract the operations against the file-system.
  * The methods should be self-explanatory.
  * 
- * Each thread gets its own copy of this to avoid synchronization.
+ * Implementations are either cheap enough for each thread to get its own copy
+ * (FileUtil), or thread safe and shared by all the threads (CachingFileUtil).
  * 
  * @author George Hadjiyiannis
  *
@@ -26,4 +28,16 @@ public interface IFileUtil {
 	public String getContentType(File file) throws ApplicationException;
 	
 	public Date getLastModifiedDate(File file);
+	
+	/*
+	 * Returns a strong entity tag for the current version of the file (quotes included),
+	 * derived from its length and last modified time
+	 */
+	public String getETag(File file);
+	
+	/*
+	 * Returns the whole content of the file if it is kept in memory, or null if the
+	 * caller should read the file itself. The buffer is shared: read it, don't modify it.
+	 */
+	public ByteBuffer getContent(File file) throws ApplicationException;
 }
@@ -0,0 +1,16 @@
+package org.ghi.external.HTTPLite;
+
+/**
+ * The interface to a server listener, i.e. the engine that accepts incoming
+ * connections and gets them served. It is started by calling run() and runs
+ * until stop() is called from a different thread. stop() only stops it accepting;
+ * run() returns once the connections have drained (or the shutdown timeout is up).
+ * 
+ * @author George Hadjiyiannis
+ *
+ */
+public interface IServerListener extends Runnable {
+
+	public void stop();
+
+}
@@ -0,0 +1,142 @@
+package org.ghi.external.HTTPLite;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies (or any other non-negative long values, in whatever unit
+ * the caller likes) with log-linear buckets: values below 64 are counted exactly,
+ * and above that each power of two is split into 32 buckets, so a percentile is never
+ * off by more than about 3%, over the whole range of a long, in less than 2000
+ * buckets.
+ *
+ * Recording is lock free (an atomic increment of the bucket, plus the count, sum and
+ * maximum), so request threads can share one without waiting for each other. Reading
+ * it while others record gives a close, rather than an exact, snapshot.
+ *
+ * NOTE: This is thread safe.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class LatencyHistogram {
+	// values below this are counted exactly
+	private static final int LINEAR = 64;
+	// each power of two above that is split into this many buckets
+	private static final int SUB_BUCKETS = 32;
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	// private variables
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong min;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		min = new AtomicLong(Long.MAX_VALUE);
+		max = new AtomicLong();
+	}
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+		// most values are neither, so look before trying to swap
+		long current;
+		while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+			// someone else got there first - try again
+		}
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// someone else got there first - try again
+		}
+	}
+
+	/*
+	 * Adds everything recorded in the other histogram to this one
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucketCount = other.counts.get(i);
+			if (bucketCount > 0)
+				counts.addAndGet(i, bucketCount);
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		min.accumulateAndGet(other.min.get(), Math::min);
+		max.accumulateAndGet(other.max.get(), Math::max);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMin() {
+		return (0 == getCount()) ? 0 : min.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long values = getCount();
+		return (0 == values) ? 0 : (double) getSum() / values;
+	}
+
+	/*
+	 * Returns the value below which the percentile (0 to 100) of the values fall, i.e.
+	 * the upper end of the bucket it is in (but never more than the maximum)
+	 */
+	public long getPercentile(double percentile) {
+		// count the buckets ourselves, so that the rank fits what we are looking at
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (0 == total)
+			return 0;
+
+		long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static int bucket(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		// value >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int top = (int) (value >>> shift);
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < LINEAR)
+			return bucket;
+		int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+		long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		long bound = ((top + 1) << shift) - 1;
+		// the very last bucket goes all the way to the top
+		return (bound < 0) ? Long.MAX_VALUE : bound;
+	}
+
+}
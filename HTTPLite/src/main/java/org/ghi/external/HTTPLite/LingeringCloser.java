@@ -0,0 +1,168 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The LingeringCloser closes connections we have answered without reading their
+ * request (the 503s of the ConnectionManager) without losing the answer: closing a
+ * socket with unread data resets it, and so does the client sending its request
+ * after we closed, so the client would see a reset instead of the response.
+ * 1) The caller writes the response and shuts down the output, then hands the
+ * 		connection over through close(); that never blocks
+ * 2) A single daemon thread waits on a Selector for what the client still sends,
+ * 		throws it away, and closes the connection once the client closes its end
+ * 3) A connection that has not closed its end after LINGER_TIMEOUT is closed anyway,
+ * 		and once MAX_LINGERING connections are lingering, the next ones are closed
+ * 		right away
+ *
+ * There is one for the whole application; its thread is only started once it is needed.
+ *
+ * NOTE: This is thread safe.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class LingeringCloser implements Runnable {
+	// how long a connection is given to send its request and read the response
+	private static final long LINGER_TIMEOUT = 2000;
+	// how many connections may linger at once
+	private static final int MAX_LINGERING = 1024;
+	// how often we look for connections that lingered long enough
+	private static final long TIMEOUT_CHECK_INTERVAL = 250;
+
+	private static final LingeringCloser instance = new LingeringCloser();
+
+	// private variables
+	private Logger logger;
+	private Selector selector;
+	private Queue<SocketChannel> pending;
+	private AtomicInteger lingering;
+	private ByteBuffer discard;
+
+	private LingeringCloser() {
+		logger = LogManager.getLogger(LingeringCloser.class);
+		pending = new ConcurrentLinkedQueue<SocketChannel>();
+		lingering = new AtomicInteger();
+		discard = ByteBuffer.allocate(4096);
+	}
+
+	public static LingeringCloser getInstance() {
+		return instance;
+	}
+
+	/*
+	 * Closes the connection once the client has closed its end, or LINGER_TIMEOUT from
+	 * now, whichever comes first. Its output must be shut down already.
+	 */
+	public void close(SocketChannel clientChannel) {
+		if (lingering.incrementAndGet() > MAX_LINGERING || !start()) {
+			lingering.decrementAndGet();
+			closeQuietly(clientChannel);
+			return;
+		}
+		pending.add(clientChannel);
+		// the selector may be blocked in select() so we need to wake it up
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				// this will block until a connection sends something, we are woken up, or it is time to check timeouts
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+				long now = System.currentTimeMillis();
+				registerPending(now);
+
+				// throw away what they send, and close the ones that are done
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable() && drain((SocketChannel) key.channel()))
+						close(key);
+				}
+
+				// and the ones that took too long
+				for (SelectionKey key : selector.keys()) {
+					if (key.isValid() && now >= (Long) key.attachment())
+						close(key);
+				}
+			} catch (IOException e) {
+				logger.error("Unknown error while closing connections: ", e);
+			}
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private synchronized boolean start() {
+		if (null != selector)
+			return true;
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			logger.error("Error creating selector: ", e);
+			return false;
+		}
+		Thread thread = new Thread(this, "lingering-close");
+		// this should never keep the application alive
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	private void registerPending(long now) {
+		SocketChannel clientChannel;
+		while (null != (clientChannel = pending.poll())) {
+			try {
+				clientChannel.configureBlocking(false);
+				clientChannel.register(selector, SelectionKey.OP_READ, now + LINGER_TIMEOUT);
+			} catch (IOException e) {
+				// it is gone already
+				lingering.decrementAndGet();
+				closeQuietly(clientChannel);
+			}
+		}
+	}
+
+	// reads whatever is there; returns true once the client has closed its end (or failed)
+	private boolean drain(SocketChannel clientChannel) {
+		try {
+			int read;
+			while ((read = clientChannel.read(discard)) > 0)
+				discard.clear();
+			return read < 0;
+		} catch (IOException e) {
+			return true;
+		} finally {
+			discard.clear();
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		lingering.decrementAndGet();
+		closeQuietly((SocketChannel) key.channel());
+	}
+
+	private static void closeQuietly(SocketChannel clientChannel) {
+		try {
+			clientChannel.close();
+		} catch (IOException e) {
+			// ignore - there's nothing we can do
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.ghi.external.HTTPLite;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small built-in table mapping file extensions to content types, so that we
+ * do not depend on (and pay for) the detectors installed on the system for the
+ * common cases.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public final class MimeTypes {
+	// extension (lower case, without the dot) to content type
+	private static final Map<String, String> TYPES = new HashMap<String, String>();
+
+	static {
+		// text
+		TYPES.put("html", "text/html");
+		TYPES.put("htm", "text/html");
+		TYPES.put("css", "text/css");
+		TYPES.put("js", "text/javascript");
+		TYPES.put("mjs", "text/javascript");
+		TYPES.put("txt", "text/plain");
+		TYPES.put("csv", "text/csv");
+		TYPES.put("md", "text/markdown");
+		TYPES.put("xml", "application/xml");
+		TYPES.put("json", "application/json");
+		TYPES.put("map", "application/json");
+		TYPES.put("rss", "application/rss+xml");
+		TYPES.put("atom", "application/atom+xml");
+		// images
+		TYPES.put("jpg", "image/jpeg");
+		TYPES.put("jpeg", "image/jpeg");
+		TYPES.put("png", "image/png");
+		TYPES.put("gif", "image/gif");
+		TYPES.put("svg", "image/svg+xml");
+		TYPES.put("ico", "image/x-icon");
+		TYPES.put("webp", "image/webp");
+		TYPES.put("avif", "image/avif");
+		TYPES.put("bmp", "image/bmp");
+		// fonts
+		TYPES.put("woff", "font/woff");
+		TYPES.put("woff2", "font/woff2");
+		TYPES.put("ttf", "font/ttf");
+		TYPES.put("otf", "font/otf");
+		// media
+		TYPES.put("mp3", "audio/mpeg");
+		TYPES.put("ogg", "audio/ogg");
+		TYPES.put("wav", "audio/wav");
+		TYPES.put("mp4", "video/mp4");
+		TYPES.put("webm", "video/webm");
+		// everything else
+		TYPES.put("pdf", "application/pdf");
+		TYPES.put("zip", "application/zip");
+		TYPES.put("gz", "application/gzip");
+		TYPES.put("wasm", "application/wasm");
+	}
+
+	private MimeTypes() {
+		// static methods only
+	}
+
+	/*
+	 * Returns the content type for the name of a file, or null if the
+	 * extension is not in the table
+	 */
+	public static String getContentType(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if (dot < 0 || dot == fileName.length() - 1)
+			return null;
+		return TYPES.get(fileName.substring(dot + 1).toLowerCase());
+	}
+
+}
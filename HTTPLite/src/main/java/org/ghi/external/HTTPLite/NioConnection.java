@@ -0,0 +1,218 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The NioConnection keeps the state of a single non-blocking connection between
+ * the moments its NioEventLoop lets it run.
+ * 1) When the channel is readable it collects bytes until its RequestParser has a complete
+ * 		request head
+ * 2) It lets the RequestHandler of the loop serve the request into its ResponseWriter
+ * 3) It writes the response out as the channel lets it, and only then
+ * 		looks at the next (possibly already buffered, i.e. pipelined) request
+ * 4) It remembers when its current request started, and when it last made progress,
+ * 		so that the loop can close it once it has been idle for longer than the idle
+ * 		timeout, once a request has taken longer than the read timeout to arrive (however
+ * 		slowly it trickles in), or once a response has been stuck for as long
+ *
+ * NOTE: The connection is only ever touched by the thread of its event loop.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class NioConnection {
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	// private variables
+	private Logger logger;
+	private SocketChannel clientChannel;
+	private SelectionKey key;
+	private RequestHandler handler;
+	private RequestParser parser;
+	private ConnectionManager connections;
+	private HttpRequest request;
+	private ByteBuffer input;
+	private ResponseWriter writer;
+	private boolean responding;
+	private boolean keepalive;
+	private boolean closed;
+	private int requests;
+	private long lastActive;
+	private long requestStart;
+	private long parseTime;
+	private long writeStart;
+
+	public NioConnection(SocketChannel clientChannel, SelectionKey key, RequestHandler handler,
+			RequestParser parser, ConnectionManager connections) {
+		this.clientChannel = clientChannel;
+		this.key = key;
+		this.handler = handler;
+		this.parser = parser;
+		this.connections = connections;
+
+		logger = LogManager.getLogger(NioConnection.class);
+		logger.debug("Connected...");
+
+		// the input buffer is always kept in write mode (ready to read more into it)
+		input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		request = new HttpRequest();
+		// for the status page and the access log
+		request.setRemoteAddress(clientChannel.socket().getInetAddress());
+		writer = new ResponseWriter();
+		keepalive = true;
+		lastActive = System.currentTimeMillis();
+		requestStart = lastActive;
+	}
+
+	public void onReadable() throws IOException {
+		boolean idle = isIdle();
+		int read = clientChannel.read(input);
+
+		// the client closed the connection
+		if (read < 0) {
+			close();
+			return;
+		}
+		// the next request has started; it has the read timeout to arrive in full
+		if (idle && read > 0)
+			requestStart = System.currentTimeMillis();
+
+		serveBufferedRequests();
+	}
+
+	public void onWritable() throws IOException {
+		flush();
+
+		// once the response is out, there may be more requests waiting
+		if (!responding && clientChannel.isOpen())
+			serveBufferedRequests();
+	}
+
+	/*
+	 * Idle means waiting for the next request, with nothing of it read yet
+	 */
+	public boolean isIdle() {
+		return !responding && requests > 0 && 0 == input.position();
+	}
+
+	public boolean hasTimedOut(long now) {
+		if (isIdle())
+			return now - lastActive > connections.getIdleTimeout();
+		// a response is only stuck if it stops moving, a request has to arrive in time as a whole
+		long since = responding ? lastActive : requestStart;
+		return now - since > connections.getReadTimeout();
+	}
+
+	public void close() {
+		// the loop may try to close it more than once
+		if (closed)
+			return;
+		closed = true;
+		logger.debug("Exiting connection...");
+
+		// release any files we did not get to send
+		writer.clear();
+
+		// cancelling the key is implied by closing the channel
+		try {
+			if (clientChannel.isOpen())
+				clientChannel.close();
+		} catch (IOException e) {
+			logger.error("Unknown error while closing client channel: ", e);
+		}
+		connections.closed();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void serveBufferedRequests() throws IOException {
+		// we serve requests strictly one at a time: nothing new until the last response is out
+		while (!responding && clientChannel.isOpen()) {
+			try {
+				if (!parseRequest())
+					return;
+				serveRequest();
+			} catch (RequestParseException e) {
+				// respond with the error, and give up on the connection
+				logger.debug("Bad request: {}", e.getMessage());
+				// whatever the parser got out of it is not to be trusted
+				request.reset();
+				handler.respondBadRequest(writer, e);
+				keepalive = false;
+				startResponse();
+			}
+		}
+	}
+
+	// returns true if the parser found a complete request in what we have read so far
+	private boolean parseRequest() throws RequestParseException {
+		input.flip();
+		// only the time spent parsing counts, not the time spent waiting for the client
+		long parseStart = System.nanoTime();
+		try {
+			if (parser.parse(input, request))
+				return true;
+		} finally {
+			parseTime += System.nanoTime() - parseStart;
+			input.compact();
+		}
+		// not complete yet; make room for more if we need to
+		if (!input.hasRemaining())
+			input = parser.grow(input);
+		return false;
+	}
+
+	private void serveRequest() throws IOException {
+		try {
+			// serve it, and remember whether the client wants us to keep going (and we let it)
+			requests++;
+			keepalive = handler.serveRequest(request, writer, connections.mayKeepAlive(requests));
+
+		} catch (Exception e) {
+
+			logger.error("Internal server error while processing request: ", e);
+
+			// respond with 500 Internal Server Error, and give up on the connection
+			handler.respondInternalServerError(writer);
+			keepalive = false;
+		}
+
+		startResponse();
+	}
+
+	private void startResponse() throws IOException {
+		responding = true;
+		writeStart = System.nanoTime();
+		flush();
+	}
+
+	private void flush() throws IOException {
+		// the socket buffer is full - wait until the channel is writable again
+		boolean done = writer.writeSome(clientChannel);
+		lastActive = System.currentTimeMillis();
+		if (!done) {
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		// all out - account for it, then check and abide by the keep-alive flag
+		handler.served(request, writer, parseTime, System.nanoTime() - writeStart);
+		parseTime = 0;
+		writer.clear();
+		responding = false;
+		// whatever comes next (even if some of it is here already) starts now
+		requestStart = lastActive;
+		if (!keepalive)
+			close();
+		else
+			key.interestOps(SelectionKey.OP_READ);
+	}
+
+}
@@ -0,0 +1,247 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The NioEventLoop services any number of connections from a single thread.
+ * 1) The NioServerListener hands it newly accepted connections through register()
+ * 2) It loops waiting on its Selector until one of its connections is ready
+ * 		to be read or written, and lets the corresponding NioConnection do the work
+ * 3) About once a second it closes the connections that have been idle (or stuck in
+ * 		the middle of a request or response) for longer than their timeout
+ * 4) When drain() is called it closes its idle connections, and every other one as
+ * 		soon as its response is out; it stops once it has none left
+ * 5) When stop() is called it closes every connection it still owns
+ *
+ * Everything except register(), drain() and stop() runs on the event loop thread, so
+ * the connections and the handler need no synchronization.
+ *
+ * NOTE: Requests are served on the event loop thread too, so anything slow in there
+ * holds up every connection of the loop. Reading a file that is not cached yet is
+ * bounded by the size limits of the file cache (anything bigger is sent straight from
+ * the file as the channel lets it), but compressing is not, so the loop never waits
+ * for it: the file is compressed in the background and sent as it is until then.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class NioEventLoop implements Runnable {
+	// how often we look for connections that timed out
+	private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+	// private variables
+	private IApplicationInjector injector;
+	private ConnectionManager connections;
+	private Logger logger;
+	private Selector selector;
+	private RequestHandler handler;
+	private RequestParser parsers;
+	private Queue<SocketChannel> pending;
+	private volatile boolean running;
+	private volatile boolean draining;
+	private long nextTimeoutCheck;
+
+	public NioEventLoop(IApplicationInjector injector) throws ApplicationException {
+		// on its own, with the default limits
+		this(injector, new ConnectionManager());
+	}
+
+	public NioEventLoop(IApplicationInjector injector, ConnectionManager connections) throws ApplicationException {
+
+		// sanity check the inputs
+		if (null == injector)
+			throw new ApplicationException("Injector cannot be null!");
+		this.injector = injector;
+
+		if (null == connections)
+			throw new ApplicationException("Connection manager cannot be null!");
+		this.connections = connections;
+
+		logger = LogManager.getLogger(NioEventLoop.class);
+
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new ApplicationException("Error creating selector: ", e);
+		}
+
+		// one handler shared by all the connections of this loop
+		handler = new RequestHandler(injector, false);
+		// the configuration is only read once; every connection gets a new parser like this one
+		parsers = injector.getRequestParser();
+
+		// connections accepted on the listener thread and waiting to be registered
+		pending = new ConcurrentLinkedQueue<SocketChannel>();
+		running = true;
+	}
+
+	/*
+	 * This will be called from the listener thread
+	 */
+	public void register(SocketChannel clientChannel) {
+		pending.add(clientChannel);
+		// the selector may be blocked in select() so we need to wake it up
+		selector.wakeup();
+	}
+
+	public void run() {
+
+		try {
+			nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+			while (running) {
+				// this will block until one of our connections is ready, we are woken up, or it is time to check timeouts
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+
+				registerPending();
+
+				// service all the connections that are ready
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							connection.onReadable();
+						if (key.isValid() && key.isWritable())
+							connection.onWritable();
+					} catch (IOException e) {
+						// most likely the client went away - nothing to respond to
+						logger.debug("Error on connection, closing: {}", e.getMessage());
+						connection.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now >= nextTimeoutCheck) {
+					closeTimedOut(now);
+					nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+				}
+
+				// once draining, we are done when every connection is
+				if (draining && closeIdle())
+					break;
+			}
+
+		} catch (IOException e) {
+			logger.error("Unknown error in event loop: ", e);
+		} finally {
+			// make sure we close every connection no matter how we exit
+			closeAll();
+		}
+	}
+
+	/*
+	 * This will be called from a different thread than the one running the loop. The
+	 * connections themselves know not to keep alive (see ConnectionManager).
+	 */
+	public void drain() {
+		draining = true;
+		selector.wakeup();
+	}
+
+	/*
+	 * This will be called from a different thread than the one running the loop
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void registerPending() {
+		SocketChannel clientChannel;
+		while (null != (clientChannel = pending.poll())) {
+			try {
+				clientChannel.configureBlocking(false);
+				// the head and the body of a response are separate writes; do not let the body wait for an ACK
+				clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+				// the parser keeps the state of a request that is only partly read, so each connection needs its own
+				key.attach(new NioConnection(clientChannel, key, handler, parsers.newParser(), connections));
+			} catch (IOException e) {
+				logger.error("Unknown error while registering connection: ", e);
+				try {
+					clientChannel.close();
+				} catch (IOException c) {
+					// ignore - there's nothing we can do
+				}
+				connections.closed();
+			}
+		}
+	}
+
+	private void closeTimedOut(long now) {
+		// (closing cancels the key, so we do not close while going through the key set)
+		List<NioConnection> timedOut = new ArrayList<NioConnection>();
+		for (SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if (null != connection && connection.hasTimedOut(now))
+				timedOut.add(connection);
+		}
+		for (NioConnection connection : timedOut) {
+			logger.debug("Connection timed out");
+			connection.close();
+		}
+	}
+
+	// closes the idle connections, and returns true if there are no others left
+	private boolean closeIdle() {
+		List<NioConnection> idle = new ArrayList<NioConnection>();
+		boolean busy = false;
+		for (SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if (null == connection || !key.isValid())
+				continue;
+			if (connection.isIdle())
+				idle.add(connection);
+			else
+				busy = true;
+		}
+		for (NioConnection connection : idle)
+			connection.close();
+		return !busy && pending.isEmpty();
+	}
+
+	private void closeAll() {
+		// connections that never made it into the selector
+		SocketChannel clientChannel;
+		while (null != (clientChannel = pending.poll())) {
+			try {
+				clientChannel.close();
+			} catch (IOException e) {
+				// ignore - there's nothing we can do
+			}
+			connections.closed();
+		}
+
+		// and the ones that did
+		for (SelectionKey key : selector.keys()) {
+			NioConnection connection = (NioConnection) key.attachment();
+			if (null != connection)
+				connection.close();
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.error("Unknown error while closing selector: ", e);
+		}
+	}
+
+}
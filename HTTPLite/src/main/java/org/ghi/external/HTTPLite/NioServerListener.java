@@ -0,0 +1,193 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The NioServerListener is the non-blocking alternative to the ServerListener.
+ * 1) It creates a channel to listen to on a configurable port
+ * 2) It creates a number of event loops, each running on its own thread
+ * 3) It goes into a loop during which
+ * 		it waits for incoming connections (accept)
+ * 		when a connection comes in it hands it over to the next event loop (round robin)
+ *
+ * Each event loop multiplexes all of its connections over a single Selector, so a
+ * connection only uses a thread while there are bytes to read or write. An idle
+ * keep-alive connection costs a registration, not a thread. Past the maximum number
+ * of connections a new one gets an immediate 503 instead. When stopped, the listener
+ * stops accepting and the event loops drain (see NioEventLoop). The open connections
+ * are in the ServerMetrics.
+ *
+ * NOTES:
+ * A) The event loop is responsible for closing the client connection
+ * B) Each event loop receives its own RequestHandler. This minimizes the need for synchronization.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class NioServerListener implements IServerListener {
+	// private variables
+	private IApplicationInjector injector;
+	private Logger logger;
+	private int port;
+	private int eventLoopCount;
+	private ConnectionManager connections;
+	private ServerSocketChannel listenChannel;
+	private NioEventLoop[] eventLoops;
+	private Thread[] eventLoopThreads;
+
+	public NioServerListener(IApplicationInjector injector, int port, int eventLoopCount) throws ApplicationException {
+		this(injector, port, eventLoopCount, new ConnectionManager());
+	}
+
+	public NioServerListener(IApplicationInjector injector, int port, int eventLoopCount,
+			ConnectionManager connections) throws ApplicationException {
+
+		// sanity check the inputs
+		if (null == injector)
+			throw new ApplicationException("Injector cannot be null!");
+		this.injector = injector;
+
+		if (port < 0)
+			throw new ApplicationException("Invalid port " + port);
+		this.port = port;
+
+		if (eventLoopCount < 1)
+			throw new ApplicationException("Invalid number of event loops " + eventLoopCount);
+		this.eventLoopCount = eventLoopCount;
+
+		if (null == connections)
+			throw new ApplicationException("Connection manager cannot be null!");
+		this.connections = connections;
+
+		logger = LogManager.getLogger(NioServerListener.class);
+	}
+
+	public void run() {
+
+		try {
+
+			logger.info("Listening on port {} with {} event loops", port, eventLoopCount);
+
+			// create a channel to listen on; we keep it blocking since accepting is all this thread does
+			listenChannel = ServerSocketChannel.open();
+			listenChannel.bind(new InetSocketAddress(port));
+			registerMetrics();
+
+			// create and start the event loops
+			eventLoops = new NioEventLoop[eventLoopCount];
+			eventLoopThreads = new Thread[eventLoopCount];
+			for (int i = 0; i < eventLoopCount; i++) {
+				eventLoops[i] = new NioEventLoop(injector, connections);
+				eventLoopThreads[i] = new Thread(eventLoops[i], "nio-event-loop-" + i);
+				eventLoopThreads[i].start();
+			}
+
+			// loop waiting for connections
+			int next = 0;
+			while (true) {
+				// this will block until a connection comes in
+				SocketChannel clientChannel = listenChannel.accept();
+
+				// too many already? tell the client to come back later
+				if (!connections.tryOpen()) {
+					connections.reject(clientChannel);
+					continue;
+				}
+
+				// hand it over to the next event loop
+				/*
+				 * NOTE: the event loop is responsible for closing the clientChannel
+				 */
+				eventLoops[next].register(clientChannel);
+				next = (next + 1) % eventLoopCount;
+			}
+
+		} catch (ApplicationException a) {
+			logger.error("Unknown error while setting up connection: ", a);
+		} catch (ClosedChannelException e) {
+			/*
+			 * ignore it - we expect this to happen when stop() is called
+			 * cleanup will be handle in finally anyway
+			 */
+		} catch (IOException e) {
+			logger.error("Unknown error while setting up connection: ", e);
+		} finally {
+			logger.info("Listener shutting down...");
+
+			// let's make sure we clean up no matter how we exit
+			closeListenChannel();
+
+			// and drain every event loop we managed to create
+			if (null != eventLoops)
+				drain();
+		}
+	}
+
+	/*
+	 * This will be called from a different thread than the one that called run (run
+	 * does not exit otherwise)
+	 */
+	public void stop() {
+		/*
+		 * Same as the blocking listener: closing the channel makes the blocked accept
+		 * call throw, and run() does the rest of the cleanup
+		 */
+		closeListenChannel();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void drain() {
+		// no more keep-alive, and each loop closes its idle connections and then the rest as they finish
+		connections.drain();
+		for (NioEventLoop eventLoop : eventLoops) {
+			if (null != eventLoop)
+				eventLoop.drain();
+		}
+
+		// the busy ones get until the shutdown timeout to finish what they are doing
+		long deadline = System.currentTimeMillis() + connections.getShutdownTimeout();
+		try {
+			for (Thread eventLoopThread : eventLoopThreads) {
+				if (null != eventLoopThread)
+					eventLoopThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// whatever is left is closed now
+		for (NioEventLoop eventLoop : eventLoops) {
+			if (null != eventLoop)
+				eventLoop.stop();
+		}
+	}
+
+	private void closeListenChannel() {
+		try {
+			if (null != listenChannel && listenChannel.isOpen())
+				listenChannel.close();
+		} catch (IOException e) {
+			logger.error("Unknown error while closing listening channel: ", e);
+		}
+	}
+
+	private void registerMetrics() {
+		ServerMetrics metrics = injector.getMetrics();
+		metrics.registerGauge("connections_open", "Connections open now.", connections::getOpenConnections);
+		metrics.registerCounter("connections_accepted_total", "Connections accepted.",
+				connections::getAcceptedConnections);
+		metrics.registerCounter("connections_rejected_total", "Connections turned away with a 503.",
+				connections::getRejectedConnections);
+		metrics.registerGauge("event_loops", "Event loops.", () -> eventLoopCount);
+	}
+
+}
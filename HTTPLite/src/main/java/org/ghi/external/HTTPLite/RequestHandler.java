@@ -0,0 +1,552 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The RequestHandler is responsible for turning a single parsed request into a
+ * response. It currently serves only GET and HEAD requests, including conditional
+ * (304 Not Modified) and range (206 Partial Content) requests, and sends compressed
+ * content to the clients that accept it (see CompressionCache). Requests for the
+ * status path are answered with the server metrics instead (see StatusPage).
+ * The response is put together in a ResponseWriter, for the caller to send.
+ * It knows nothing about how the connection is managed, so that the same logic
+ * can be shared by the blocking and the non-blocking engines.
+ *
+ * NOTE: A handler is not thread safe. Each thread (or event loop) gets its own
+ * copy of this to avoid synchronization. The handlers of event loops must not
+ * block, so they never wait for a file to be compressed (see CompressionCache).
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class RequestHandler {
+	// private variables
+	private IApplicationInjector injector;
+	private Logger logger;
+	private boolean keepalive;
+	private byte[] connection;
+	private boolean vary;
+	private boolean mayBlock;
+	private IFileUtil fileUtil;
+	private CompressionCache compression;
+	private ServerMetrics metrics;
+	private StatusPage statusPage;
+	private AccessLog accessLog;
+	private String boundary;
+
+	public RequestHandler(IApplicationInjector injector) throws ApplicationException {
+		// for a thread of its own
+		this(injector, true);
+	}
+
+	public RequestHandler(IApplicationInjector injector, boolean mayBlock) throws ApplicationException {
+
+		// sanity check the inputs
+		if (null == injector)
+			throw new ApplicationException("Injector cannot be null!");
+		this.injector = injector;
+		this.mayBlock = mayBlock;
+
+		logger = LogManager.getLogger(RequestHandler.class);
+
+		// create an IFileUtil we can use locally
+		fileUtil = this.injector.getFileUtil();
+		// and the shared compression cache (null if compression is off)
+		compression = this.injector.getCompressionCache();
+		// the shared metrics, and the page that shows them (null if there is none)
+		metrics = this.injector.getMetrics();
+		statusPage = this.injector.getStatusPage();
+		// and the access log (null if there is none)
+		accessLog = this.injector.getAccessLog();
+
+		// the separator for multipart responses; random so that it is unlikely to be in a file
+		boundary = "HTTPLite-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+	}
+
+	/*
+	 * Serves a single request, putting the response together in the writer. The
+	 * connection is only kept alive if the caller allows it (see ConnectionManager).
+	 * Returns true if the connection should be kept alive for further requests.
+	 */
+	public boolean serveRequest(HttpRequest request, ResponseWriter writer, boolean mayKeepAlive)
+			throws ApplicationException {
+		// the time it takes to find the file and put the response together
+		long start = System.nanoTime();
+		try {
+			return respond(request, writer, mayKeepAlive);
+		} finally {
+			metrics.getLookupTimes().record(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	 * Accounts for a request once its response is out: the metrics, and a line in the
+	 * access log (if there is one). The times are those the connection took to parse
+	 * the request and to write the response, in nanoseconds.
+	 */
+	public void served(HttpRequest request, ResponseWriter writer, long parseTime, long writeTime) {
+		metrics.getParseTimes().record(parseTime);
+		metrics.getWriteTimes().record(writeTime);
+		metrics.served(request.getMethod(), writer.getStatus(), writer.getLength());
+		if (null != accessLog)
+			accessLog.log(request, writer);
+	}
+
+	private boolean respond(HttpRequest request, ResponseWriter writer, boolean mayKeepAlive)
+			throws ApplicationException {
+
+		// check the keep-alive flag
+		keepalive = mayKeepAlive && hasRequestedKeepalive(request);
+		connection = getConnectionHeader(request);
+		vary = false;
+
+		// check the requested method
+		String method = request.getMethod();
+		// we can only process GET and HEAD requests
+		if (method.equals(HttpRequest.GET) || method.equals(HttpRequest.HEAD)) {
+
+			// get the path, URL decoded and with the query string removed
+			String path = request.getPath();
+
+			/*
+			 * The parser has already removed any /../ sequences, so one cannot climb out
+			 * of document root
+			 */
+
+			logger.debug("Serving from path {}", path);
+
+			// the status page is not a file
+			if (null != statusPage && statusPage.matches(path)) {
+				respondStatus(writer, request);
+				return keepalive;
+			}
+
+			// lets check the file out a bit
+			File file = fileUtil.getFileFromPath(path);
+
+			// if it does not exists respond with 404 Not Found
+			if (!fileUtil.exists(file)) {
+				respondNotFound(writer);
+				return keepalive;
+			}
+
+			// if it is not readable respond with 403 Forbidden
+			if (!fileUtil.isReadable(file)) {
+				respondForbidden(writer);
+				return keepalive;
+			}
+
+			/*
+			 * If the file can be compressed, the response depends on Accept-Encoding. Only
+			 * whole files are sent compressed; HEAD and range requests get the file as it is.
+			 */
+			CompressionCache.Selection selection = null;
+			if (null != compression) {
+				boolean whole = method.equals(HttpRequest.GET) && null == request.getRange();
+				selection = compression.select(file, fileUtil.getContentType(file),
+						whole ? request.getAcceptEncoding() : null);
+				vary = selection.varies();
+			}
+			String encoding = (null == selection) ? null : selection.getEncoding();
+
+			// if the client already has the current version respond with 304 Not Modified
+			String etag = (null == encoding) ? fileUtil.getETag(file) : selection.getETag();
+			long lastModified = fileUtil.getLastModifiedDate(file).getTime();
+			if (isNotModified(request, etag, lastModified)) {
+				respondNotModified(writer, file, etag);
+				return keepalive;
+			}
+
+			// only now is anything compressed; if it did not pay (or is not done yet), the client may have the file as it is
+			CompressionCache.Variant variant = (null == encoding) ? null
+					: compression.getVariant(selection, mayBlock);
+			if (null != encoding && null == variant) {
+				etag = fileUtil.getETag(file);
+				if (isNotModified(request, etag, lastModified)) {
+					respondNotModified(writer, file, etag);
+					return keepalive;
+				}
+			}
+
+			// now send the response
+			if (method.equals(HttpRequest.HEAD)) {
+				respondOKWithoutContent(writer, file);
+				return keepalive;
+			}
+
+			// the compressed file
+			if (null != variant) {
+				respondOKWithEncodedContent(writer, file, variant);
+				return keepalive;
+			}
+
+			// the whole file, or only the parts of it that were asked for
+			long[] ranges = getRanges(request, file, etag, lastModified);
+			if (null == ranges)
+				respondOKWithContent(writer, file);
+			else if (0 == ranges.length)
+				respondRangeNotSatisfiable(writer, file);
+			else if (2 == ranges.length)
+				respondPartialContent(writer, file, ranges[0], ranges[1]);
+			else
+				respondMultipartByteranges(writer, file, ranges);
+
+		} else {
+			// respond with 405 Method Not Allowed
+			respondMethodNotAllowed(writer);
+		}
+		return keepalive;
+	}
+
+	private boolean hasRequestedKeepalive(HttpRequest request) {
+		// HTTP/1.1 connections are persistent unless the client says close, HTTP/1.0 ones only if it says keep-alive
+		if (request.isConnectionClose() || !(request.isHttp11() || request.isConnectionKeepAlive()))
+			return false;
+		// but not if we cannot tell where the next request starts
+		return request.getContentLength() >= 0;
+	}
+
+	/*
+	 * We only need to say keep-alive to clients that asked for it (HTTP/1.1 ones assume it
+	 * anyway), but we always say when we are going to close the connection
+	 */
+	private byte[] getConnectionHeader(HttpRequest request) {
+		if (!keepalive)
+			return ResponseWriter.CONNECTION_CLOSE;
+		return request.isConnectionKeepAlive() ? ResponseWriter.CONNECTION_KEEPALIVE : null;
+	}
+
+	/*
+	 * The conditional request rules of RFC 7232: If-None-Match, if present, decides on its
+	 * own; otherwise If-Modified-Since (with the one second precision of the dates we send)
+	 */
+	private boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getIfNoneMatch();
+		if (null != ifNoneMatch)
+			return matchesAny(ifNoneMatch, etag);
+
+		long ifModifiedSince = HttpDate.parse(request.getIfModifiedSince());
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	// weak comparison against a list of entity tags, or *
+	private boolean matchesAny(String etags, String etag) {
+		if (etags.trim().equals("*"))
+			return true;
+		int start = 0;
+		while (start < etags.length()) {
+			int comma = etags.indexOf(',', start);
+			if (comma < 0)
+				comma = etags.length();
+			String candidate = etags.substring(start, comma).trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals(etag))
+				return true;
+			start = comma + 1;
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the ranges to send (see ByteRanges), or null to send the whole file: when
+	 * nothing or nothing sensible was asked for, or when If-Range says the client has an
+	 * older version of the file and the parts would not fit with what it already has
+	 */
+	private long[] getRanges(HttpRequest request, File file, String etag, long lastModified) {
+		String range = request.getRange();
+		if (null == range)
+			return null;
+
+		String ifRange = request.getIfRange();
+		if (null != ifRange) {
+			// a strong comparison for entity tags, and an exact match for dates
+			boolean current = ifRange.startsWith("\"") ? ifRange.equals(etag)
+					: !ifRange.startsWith("W/") && HttpDate.parse(ifRange) / 1000 == lastModified / 1000;
+			if (!current)
+				return null;
+		}
+		return ByteRanges.parse(range, fileUtil.getContentLength(file));
+	}
+
+	/*
+	 * Style note on respond methods: From a strict, best practice perspective, this would appear
+	 * to have a high percentage of replicated code. However, while debugging I found that it is easier
+	 * to read what the response would look like when all of it is expanded like this, rather than
+	 * packing it all into one or two methods with lots of conditionals. I have opted for readability
+	 * above compactness. The behavior is not expected to change, since it is defined in the protocol.
+	 *
+	 * The responses without content differ only in the status, so the ResponseWriter keeps them
+	 * pre-encoded (text/plain, zero length, Server) and only adds the Date and Connection headers.
+	 */
+
+	// respond with 200 OK (plus content)
+	private void respondOKWithContent(ResponseWriter writer, File file) throws ApplicationException {
+		// get the content type from the file itself
+		String contentType = fileUtil.getContentType(file);
+		long contentLength = fileUtil.getContentLength(file);
+		// get the last modified date and the entity tag
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+		String etag = fileUtil.getETag(file);
+
+		// construct the response
+		writer.startResponse(200);
+		if (null != contentType)
+			writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		writer.writeHeaderLine(ResponseWriter.ACCEPT_RANGES);
+		if (vary)
+			writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+
+		// the content goes out after the headers, straight from memory if it is there
+		addContent(writer, fileUtil.getContent(file), file, 0, contentLength);
+	}
+
+	// respond with 200 OK (plus compressed content)
+	private void respondOKWithEncodedContent(ResponseWriter writer, File file, CompressionCache.Variant variant)
+			throws ApplicationException {
+		// the content type is that of the file, the rest that of the compressed version
+		String contentType = fileUtil.getContentType(file);
+		long contentLength = variant.getLength();
+		// get the last modified date and the entity tag
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+		String etag = variant.getETag();
+
+		// construct the response
+		writer.startResponse(200);
+		if (null != contentType)
+			writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_ENCODING, variant.getEncoding());
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+
+		// compressed in memory, or a precompressed file that goes straight to the socket
+		if (null != variant.getContent())
+			writer.addBody(variant.getContent());
+		else
+			addContent(writer, null, variant.getFile(), 0, contentLength);
+	}
+
+	// respond with 200 OK (without content)
+	private void respondOKWithoutContent(ResponseWriter writer, File file) throws ApplicationException {
+		// get the content type from the file itself
+		String contentType = fileUtil.getContentType(file);
+		long contentLength = 0; // we are not sending any content
+		// get the last modified date and the entity tag
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+		String etag = fileUtil.getETag(file);
+
+		// construct the response
+		writer.startResponse(200);
+		if (null != contentType)
+			writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		writer.writeHeaderLine(ResponseWriter.ACCEPT_RANGES);
+		if (vary)
+			writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+	}
+
+	// respond with 206 Partial Content (one part of the content)
+	private void respondPartialContent(ResponseWriter writer, File file, long first, long last)
+			throws ApplicationException {
+		// get the content type from the file itself
+		String contentType = fileUtil.getContentType(file);
+		long contentLength = last - first + 1; // only the part
+		long length = fileUtil.getContentLength(file);
+		// get the last modified date and the entity tag
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+		String etag = fileUtil.getETag(file);
+
+		// construct the response
+		writer.startResponse(206);
+		if (null != contentType)
+			writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeContentRange(first, last, length);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		writer.writeHeaderLine(ResponseWriter.ACCEPT_RANGES);
+		if (vary)
+			writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+
+		// only the part of the content that was asked for
+		addContent(writer, fileUtil.getContent(file), file, first, contentLength);
+	}
+
+	// respond with 206 Partial Content (several parts of the content, as multipart/byteranges)
+	private void respondMultipartByteranges(ResponseWriter writer, File file, long[] ranges)
+			throws ApplicationException {
+		// get the content type from the file itself
+		String contentType = fileUtil.getContentType(file);
+		long length = fileUtil.getContentLength(file);
+		// get the last modified date and the entity tag
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+		String etag = fileUtil.getETag(file);
+
+		// every part has its own little head, and we need them all to get the content length
+		List<ByteBuffer> partHeads = new ArrayList<ByteBuffer>(ranges.length / 2);
+		long contentLength = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			ByteBuffer partHead = ascii("\r\n--" + boundary + "\r\n"
+					+ ((null != contentType) ? "Content-Type: " + contentType + "\r\n" : "")
+					+ "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + length + "\r\n\r\n");
+			partHeads.add(partHead);
+			contentLength += partHead.remaining() + ranges[i + 1] - ranges[i] + 1;
+		}
+		ByteBuffer end = ascii("\r\n--" + boundary + "--\r\n");
+		contentLength += end.remaining();
+
+		// construct the response
+		writer.startResponse(206);
+		writer.writeHeader(ResponseWriter.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		writer.writeHeaderLine(ResponseWriter.ACCEPT_RANGES);
+		if (vary)
+			writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+
+		// and then the parts, each followed by the part of the content it describes
+		ByteBuffer content = fileUtil.getContent(file);
+		for (int i = 0; i < ranges.length; i += 2) {
+			writer.addBody(partHeads.get(i / 2));
+			addContent(writer, content, file, ranges[i], ranges[i + 1] - ranges[i] + 1);
+		}
+		writer.addBody(end);
+	}
+
+	// respond with 304 Not Modified
+	private void respondNotModified(ResponseWriter writer, File file, String etag) {
+		// get the last modified date (the entity tag is that of the version the client has)
+		Date lastModified = fileUtil.getLastModifiedDate(file);
+
+		// construct the response (it never has content, so it needs no content headers)
+		writer.startResponse(304);
+		writer.writeCommonHeaders(connection);
+		writer.writeDateHeader(ResponseWriter.LAST_MODIFIED, lastModified.getTime());
+		writer.writeHeader(ResponseWriter.ETAG, etag);
+		if (vary)
+			writer.writeHeaderLine(ResponseWriter.VARY_ACCEPT_ENCODING);
+		writer.endHeaders();
+	}
+
+	// respond with 416 Range Not Satisfiable
+	private void respondRangeNotSatisfiable(ResponseWriter writer, File file) {
+		// get the content type from the file itself
+		String contentType = "text/plain";
+		long contentLength = 0;
+		long length = fileUtil.getContentLength(file);
+
+		// construct the response
+		writer.startResponse(416);
+		writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeContentRange(-1, -1, length);
+		writer.writeCommonHeaders(connection);
+		writer.endHeaders();
+	}
+
+	// respond with 200 OK (plus the status page), or 403 Forbidden if the client may not see it
+	private void respondStatus(ResponseWriter writer, HttpRequest request) {
+		if (!statusPage.isAllowed(request.getRemoteAddress())) {
+			respondForbidden(writer);
+			return;
+		}
+		String contentType = statusPage.getContentType(request.getQuery());
+		ByteBuffer content = statusPage.render(contentType);
+		long contentLength = content.remaining();
+
+		// construct the response (the numbers are only current for an instant)
+		writer.startResponse(200);
+		writer.writeHeader(ResponseWriter.CONTENT_TYPE, contentType);
+		writer.writeHeader(ResponseWriter.CONTENT_LENGTH, contentLength);
+		writer.writeCommonHeaders(connection);
+		writer.writeHeaderLine(ResponseWriter.CACHE_CONTROL_NO_STORE);
+		writer.endHeaders();
+
+		if (request.getMethod().equals(HttpRequest.GET))
+			writer.addBody(content);
+	}
+
+	// respond with 403 Forbidden
+	private void respondForbidden(ResponseWriter writer) {
+		writer.writeEmptyResponse(403, connection);
+	}
+
+	// respond with 404 Not Found
+	private void respondNotFound(ResponseWriter writer) {
+		writer.writeEmptyResponse(404, connection);
+	}
+
+	// respond with 405 Method Not Allowed
+	private void respondMethodNotAllowed(ResponseWriter writer) {
+		writer.writeEmptyResponse(405, connection);
+	}
+
+	// respond with 400 Bad Request (or one of its more specific variants)
+	public void respondBadRequest(ResponseWriter writer, RequestParseException e) {
+		// we cannot trust anything else the client sends after this
+		keepalive = false;
+		connection = ResponseWriter.CONNECTION_CLOSE;
+		writer.writeEmptyResponse(e.getStatus(), connection);
+	}
+
+	// respond with 500 Internal Server Error
+	public void respondInternalServerError(ResponseWriter writer) {
+		// the message is in the log; the client gets an empty response, and the connection is closed
+		keepalive = false;
+		connection = ResponseWriter.CONNECTION_CLOSE;
+		writer.writeEmptyResponse(500, connection);
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	// adds count bytes of the content from first on, straight from memory if it is there
+	private void addContent(ResponseWriter writer, ByteBuffer content, File file, long first, long count)
+			throws ApplicationException {
+		try {
+			// (unless the file changed since we looked at its length)
+			if (null != content && content.remaining() >= first + count) {
+				ByteBuffer part = content.duplicate();
+				part.position(part.position() + (int) first);
+				part.limit(part.position() + (int) count);
+				writer.addBody(part);
+			} else {
+				writer.addBody(file, first, count);
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Error opening file: ", e);
+		}
+	}
+
+	private static ByteBuffer ascii(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,26 @@
+package org.ghi.external.HTTPLite;
+
+/**
+ * Thrown by the RequestParser when a request cannot (or will not) be parsed.
+ * It carries the status the client should get back, e.g. 400 Bad Request,
+ * 414 URI Too Long or 431 Request Header Fields Too Large.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class RequestParseException extends ApplicationException {
+
+	private static final long serialVersionUID = 2287613942460811531L;
+
+	private final int status;
+
+	public RequestParseException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+}
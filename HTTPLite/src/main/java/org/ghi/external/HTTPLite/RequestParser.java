@@ -0,0 +1,569 @@
+package org.ghi.external.HTTPLite;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The RequestParser reads HTTP/1.x requests straight out of the buffer the bytes
+ * were read into, without copying them or building Strings for the parts we do
+ * not use.
+ * 1) It looks for the end of the request head in whatever has arrived so far, and
+ * 		remembers how far it got, so a request that arrives in pieces is only
+ * 		scanned once, however many reads it takes (this is what the non-blocking
+ * 		engine needs)
+ * 2) While doing so it enforces the limits on the size of the request line, the size
+ * 		of the headers and their number, so a client cannot make us buffer more than
+ * 		that
+ * 3) Once the head is complete it fills in an HttpRequest: the method, the decoded
+ * 		and normalized path, the query, the framing of the body, and the headers we
+ * 		care about (plus the request target, Referer and User-Agent, if it was told
+ * 		to keep them for the access log)
+ * 4) It skips over request bodies (we do not use them) before the next request, so
+ * 		any number of pipelined requests can be parsed out of the same buffer
+ *
+ * The buffer is always passed in read mode (flipped), and must have a backing array.
+ * A complete request moves the position past its head; otherwise the position is
+ * left alone, for the caller to read more after it and try again.
+ *
+ * NOTE: A parser is not thread safe, and keeps state between requests. Each
+ * connection gets its own.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class RequestParser {
+	// the defaults for the limits
+	public static final int DEFAULT_MAX_REQUEST_LINE_SIZE = 8 * 1024;
+	public static final int DEFAULT_MAX_HEADER_SIZE = 16 * 1024;
+	public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+	// the header names we are interested in, lower case
+	private static final byte[] CONNECTION = ascii("connection");
+	private static final byte[] CONTENT_LENGTH = ascii("content-length");
+	private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+	private static final byte[] IF_MODIFIED_SINCE = ascii("if-modified-since");
+	private static final byte[] IF_NONE_MATCH = ascii("if-none-match");
+	private static final byte[] RANGE = ascii("range");
+	private static final byte[] IF_RANGE = ascii("if-range");
+	private static final byte[] ACCEPT_ENCODING = ascii("accept-encoding");
+	private static final byte[] REFERER = ascii("referer");
+	private static final byte[] USER_AGENT = ascii("user-agent");
+	// and the Connection options
+	private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+	private static final byte[] CLOSE = ascii("close");
+
+	// private variables
+	private final int maxRequestLineSize;
+	private final int maxHeaderSize;
+	private final int maxHeaderCount;
+	private final boolean keepLogFields;
+	private final byte[] decoded;
+	private final CharsetDecoder utf8;
+	// how far we got into the head of the current request, relative to the position of the buffer
+	private int scanned;
+	private int lineStart;
+	private int headersStart;
+	private int lines;
+	// what is left of the body of the last request
+	private long bodyRemaining;
+	// the Content-Length of the head being parsed, or -1 if it has not had one (yet)
+	private long contentLength;
+
+	public RequestParser() {
+		maxRequestLineSize = DEFAULT_MAX_REQUEST_LINE_SIZE;
+		maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+		maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+		keepLogFields = false;
+		decoded = new byte[maxRequestLineSize];
+		utf8 = newDecoder();
+	}
+
+	public RequestParser(int maxRequestLineSize, int maxHeaderSize, int maxHeaderCount) throws ApplicationException {
+		this(maxRequestLineSize, maxHeaderSize, maxHeaderCount, false);
+	}
+
+	public RequestParser(int maxRequestLineSize, int maxHeaderSize, int maxHeaderCount, boolean keepLogFields)
+			throws ApplicationException {
+		// sanity check the inputs
+		if (maxRequestLineSize < 16)
+			throw new ApplicationException("Maximum request line size must be at least 16!");
+		if (maxHeaderSize < 0)
+			throw new ApplicationException("Maximum header size cannot be negative!");
+		if (maxHeaderCount < 0)
+			throw new ApplicationException("Maximum header count cannot be negative!");
+
+		this.maxRequestLineSize = maxRequestLineSize;
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxHeaderCount = maxHeaderCount;
+		this.keepLogFields = keepLogFields;
+		decoded = new byte[maxRequestLineSize];
+		utf8 = newDecoder();
+	}
+
+	// a new parser with the limits of the other one (and none of its state)
+	private RequestParser(RequestParser other) {
+		maxRequestLineSize = other.maxRequestLineSize;
+		maxHeaderSize = other.maxHeaderSize;
+		maxHeaderCount = other.maxHeaderCount;
+		keepLogFields = other.keepLogFields;
+		decoded = new byte[maxRequestLineSize];
+		utf8 = newDecoder();
+	}
+
+	/*
+	 * Returns a new parser with the same limits as this one, for another connection.
+	 * This is cheap: unlike the injector, it does not go back to the configuration.
+	 */
+	public RequestParser newParser() {
+		return new RequestParser(this);
+	}
+
+	/*
+	 * The largest request head we may have to hold in a buffer
+	 */
+	public int getMaxHeadSize() {
+		// the line ends are not counted against the limits
+		return maxRequestLineSize + maxHeaderSize + 2 * (maxHeaderCount + 2);
+	}
+
+	/*
+	 * Parses the next request out of the buffer into the request. Returns true if it
+	 * found a complete request head, and false if it needs more bytes.
+	 */
+	public boolean parse(ByteBuffer buffer, HttpRequest request) throws RequestParseException {
+		// first get the body of the last request out of the way
+		if (bodyRemaining > 0) {
+			int skip = (int) Math.min(bodyRemaining, buffer.remaining());
+			buffer.position(buffer.position() + skip);
+			bodyRemaining -= skip;
+			if (bodyRemaining > 0)
+				return false;
+		}
+
+		byte[] bytes = buffer.array();
+		int base = buffer.arrayOffset() + buffer.position();
+		int available = buffer.remaining();
+
+		while (scanned < available) {
+			if (bytes[base + scanned++] != '\n')
+				continue;
+
+			// we have a complete line; the CR before the LF is optional
+			int lineEnd = scanned - 1;
+			if (lineEnd > lineStart && bytes[base + lineEnd - 1] == '\r')
+				lineEnd--;
+			int lineLength = lineEnd - lineStart;
+
+			if (0 == lines) {
+				if (0 == lineLength) {
+					// empty lines before the request line are allowed, and ignored
+					buffer.position(buffer.position() + scanned);
+					base += scanned;
+					available -= scanned;
+					scanned = 0;
+					continue;
+				}
+				if (lineLength > maxRequestLineSize)
+					throw new RequestParseException(414, "Request line too long");
+				headersStart = scanned;
+			} else if (0 == lineLength) {
+				// the empty line ends the head
+				if (scanned - headersStart > getMaxHeaderBytes())
+					throw new RequestParseException(431, "Request headers too large");
+				parseHead(bytes, base, request);
+				buffer.position(buffer.position() + scanned);
+				startNextRequest(request);
+				return true;
+			} else if (lines > maxHeaderCount) {
+				throw new RequestParseException(431, "Too many request headers");
+			}
+
+			lines++;
+			lineStart = scanned;
+		}
+
+		// not complete yet; make sure it is not getting too big
+		if (0 == lines && scanned > maxRequestLineSize + 2)
+			throw new RequestParseException(414, "Request line too long");
+		if (lines > 0 && scanned - headersStart > getMaxHeaderBytes())
+			throw new RequestParseException(431, "Request headers too large");
+		return false;
+	}
+
+	/*
+	 * Returns a bigger buffer (in write mode) with the contents of the full one
+	 * passed in (also in write mode), or throws if the head cannot get any bigger.
+	 */
+	public ByteBuffer grow(ByteBuffer buffer) throws RequestParseException {
+		if (buffer.capacity() >= getMaxHeadSize())
+			throw new RequestParseException(431, "Request head too large");
+		ByteBuffer bigger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, getMaxHeadSize()));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private int getMaxHeaderBytes() {
+		// the header lines, plus their line ends
+		return maxHeaderSize + 2 * (maxHeaderCount + 1);
+	}
+
+	private void startNextRequest(HttpRequest request) {
+		scanned = 0;
+		lineStart = 0;
+		headersStart = 0;
+		lines = 0;
+		// we cannot skip a body we do not know the length of; the connection will be closed
+		bodyRemaining = Math.max(request.getContentLength(), 0);
+	}
+
+	private void parseHead(byte[] bytes, int base, HttpRequest request) throws RequestParseException {
+		request.reset();
+		contentLength = -1;
+
+		// the request line is method SP request-target SP HTTP-version
+		int lineEnd = base + headersStart - 1;
+		if (bytes[lineEnd - 1] == '\r')
+			lineEnd--;
+		int firstSpace = indexOf(bytes, base, lineEnd, (byte) ' ');
+		int lastSpace = lastIndexOf(bytes, base, lineEnd, (byte) ' ');
+		if (firstSpace <= base || lastSpace <= firstSpace + 1)
+			throw new RequestParseException(400, "Malformed request line");
+
+		parseMethod(bytes, base, firstSpace, request);
+		parseVersion(bytes, lastSpace + 1, lineEnd, request);
+		parseTarget(bytes, firstSpace + 1, lastSpace, request);
+		if (keepLogFields)
+			request.setTarget(string(bytes, firstSpace + 1, lastSpace));
+
+		// then the headers, one per line
+		int start = base + headersStart;
+		int end = base + scanned;
+		while (start < end) {
+			int lineFeed = indexOf(bytes, start, end, (byte) '\n');
+			int headerEnd = (lineFeed > start && bytes[lineFeed - 1] == '\r') ? lineFeed - 1 : lineFeed;
+			if (headerEnd > start)
+				parseHeader(bytes, start, headerEnd, request);
+			start = lineFeed + 1;
+		}
+	}
+
+	private void parseMethod(byte[] bytes, int start, int end, HttpRequest request) throws RequestParseException {
+		if (matches(bytes, start, end, HttpRequest.GET)) {
+			request.setMethod(HttpRequest.GET);
+			return;
+		}
+		if (matches(bytes, start, end, HttpRequest.HEAD)) {
+			request.setMethod(HttpRequest.HEAD);
+			return;
+		}
+		// any other method is not served, but it has to be a valid token for us to say so
+		for (int i = start; i < end; i++) {
+			if (!isTokenChar(bytes[i]))
+				throw new RequestParseException(400, "Malformed method");
+		}
+		request.setMethod(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	private void parseVersion(byte[] bytes, int start, int end, HttpRequest request) throws RequestParseException {
+		// HTTP/d.d
+		if (end - start != 8 || !matches(bytes, start, start + 5, "HTTP/") || !isDigit(bytes[start + 5])
+				|| bytes[start + 6] != '.' || !isDigit(bytes[start + 7]))
+			throw new RequestParseException(400, "Malformed HTTP version");
+		if (bytes[start + 5] != '1')
+			throw new RequestParseException(505, "HTTP version not supported");
+		request.setHttp11(bytes[start + 7] != '0');
+	}
+
+	private void parseTarget(byte[] bytes, int start, int end, HttpRequest request) throws RequestParseException {
+		// the absolute form (mostly sent to proxies) is allowed; we only want its path
+		if (bytes[start] != '/') {
+			int scheme = indexOf(bytes, start, end, (byte) ':');
+			if (scheme < 0 || scheme + 2 >= end || bytes[scheme + 1] != '/' || bytes[scheme + 2] != '/') {
+				// the asterisk form is only good for OPTIONS, which we do not serve anyway
+				if (end - start == 1 && bytes[start] == '*' && !request.getMethod().equals(HttpRequest.GET)
+						&& !request.getMethod().equals(HttpRequest.HEAD)) {
+					request.setPath("*");
+					return;
+				}
+				throw new RequestParseException(400, "Malformed request target");
+			}
+			start = indexOf(bytes, scheme + 3, end, (byte) '/');
+			if (start < 0) {
+				request.setPath("/");
+				return;
+			}
+		}
+
+		// percent-decode the path, leaving out the query
+		int length = 0;
+		boolean ascii = true;
+		for (int i = start; i < end; i++) {
+			byte b = bytes[i];
+			if (b == '?') {
+				int fragment = indexOf(bytes, i + 1, end, (byte) '#');
+				request.setQuery(string(bytes, i + 1, (fragment < 0) ? end : fragment));
+				break;
+			}
+			if (b == '#')
+				break;
+			if (b == '%') {
+				if (i + 2 >= end)
+					throw new RequestParseException(400, "Malformed percent-encoding");
+				int high = hexValue(bytes[i + 1]);
+				int low = hexValue(bytes[i + 2]);
+				if (high < 0 || low < 0)
+					throw new RequestParseException(400, "Malformed percent-encoding");
+				b = (byte) (high << 4 | low);
+				i += 2;
+			}
+			// control characters (including an encoded NUL) have no place in a file name
+			if (b >= 0 && b < 0x20 || b == 0x7f)
+				throw new RequestParseException(400, "Control character in path");
+			ascii &= b >= 0;
+			decoded[length++] = b;
+		}
+
+		String path;
+		if (ascii) {
+			path = new String(decoded, 0, length, StandardCharsets.US_ASCII);
+		} else {
+			try {
+				path = utf8.decode(ByteBuffer.wrap(decoded, 0, length)).toString();
+			} catch (CharacterCodingException e) {
+				throw new RequestParseException(400, "Path is not valid UTF-8");
+			}
+		}
+		request.setPath(removeDotSegments(path));
+	}
+
+	/*
+	 * Removes the . and .. segments of a path that starts with /, following RFC 3986
+	 * section 5.2.4, so that the result can never climb above the root.
+	 */
+	static String removeDotSegments(String path) {
+		// most paths have nothing to remove
+		if (path.indexOf("/.") < 0)
+			return path;
+
+		int length = path.length();
+		char[] out = new char[length + 1];
+		int o = 0;
+		int i = 0;
+		while (i < length) {
+			// i is always at a /
+			int next = path.indexOf('/', i + 1);
+			if (next < 0)
+				next = length;
+			int segmentLength = next - i - 1;
+
+			if (1 == segmentLength && path.charAt(i + 1) == '.') {
+				// drop it, but a trailing one still leaves the directory
+				if (next == length)
+					out[o++] = '/';
+			} else if (2 == segmentLength && path.charAt(i + 1) == '.' && path.charAt(i + 2) == '.') {
+				// drop it and the segment before it (if any)
+				while (o > 0 && out[--o] != '/') {
+					// keep going back to the previous /
+				}
+				if (next == length)
+					out[o++] = '/';
+			} else {
+				path.getChars(i, next, out, o);
+				o += next - i;
+			}
+			i = next;
+		}
+		return (0 == o) ? "/" : new String(out, 0, o);
+	}
+
+	private void parseHeader(byte[] bytes, int start, int end, HttpRequest request) throws RequestParseException {
+		// obsolete line folding is not allowed in requests any more
+		if (bytes[start] == ' ' || bytes[start] == '\t')
+			throw new RequestParseException(400, "Obsolete line folding in headers");
+
+		// there can be no whitespace between the name and the colon
+		int colon = indexOf(bytes, start, end, (byte) ':');
+		if (colon <= start)
+			throw new RequestParseException(400, "Malformed header");
+		for (int i = start; i < colon; i++) {
+			if (!isTokenChar(bytes[i]))
+				throw new RequestParseException(400, "Malformed header name");
+		}
+
+		// trim the value
+		int valueStart = colon + 1;
+		int valueEnd = end;
+		while (valueStart < valueEnd && isWhitespace(bytes[valueStart]))
+			valueStart++;
+		while (valueEnd > valueStart && isWhitespace(bytes[valueEnd - 1]))
+			valueEnd--;
+
+		// only the headers we are interested in get any further than this
+		int nameLength = colon - start;
+		switch (nameLength) {
+		case 5:
+			if (equalsIgnoreCase(bytes, start, RANGE) && null == request.getRange())
+				request.setRange(string(bytes, valueStart, valueEnd));
+			break;
+		case 7:
+			if (keepLogFields && equalsIgnoreCase(bytes, start, REFERER) && null == request.getReferer())
+				request.setReferer(string(bytes, valueStart, valueEnd));
+			break;
+		case 8:
+			if (equalsIgnoreCase(bytes, start, IF_RANGE) && null == request.getIfRange())
+				request.setIfRange(string(bytes, valueStart, valueEnd));
+			break;
+		case 10:
+			if (equalsIgnoreCase(bytes, start, CONNECTION))
+				parseConnection(bytes, valueStart, valueEnd, request);
+			else if (keepLogFields && equalsIgnoreCase(bytes, start, USER_AGENT) && null == request.getUserAgent())
+				request.setUserAgent(string(bytes, valueStart, valueEnd));
+			break;
+		case 13:
+			if (equalsIgnoreCase(bytes, start, IF_NONE_MATCH))
+				request.setIfNoneMatch(join(request.getIfNoneMatch(), string(bytes, valueStart, valueEnd)));
+			break;
+		case 14:
+			if (equalsIgnoreCase(bytes, start, CONTENT_LENGTH))
+				parseContentLength(bytes, valueStart, valueEnd, request);
+			break;
+		case 15:
+			if (equalsIgnoreCase(bytes, start, ACCEPT_ENCODING))
+				request.setAcceptEncoding(join(request.getAcceptEncoding(), string(bytes, valueStart, valueEnd)));
+			break;
+		case 17:
+			if (equalsIgnoreCase(bytes, start, TRANSFER_ENCODING))
+				request.setChunked(true);
+			else if (equalsIgnoreCase(bytes, start, IF_MODIFIED_SINCE) && null == request.getIfModifiedSince())
+				request.setIfModifiedSince(string(bytes, valueStart, valueEnd));
+			break;
+		default:
+			// not interested
+		}
+	}
+
+	private void parseConnection(byte[] bytes, int start, int end, HttpRequest request) {
+		// a comma separated list of options
+		while (start < end) {
+			int comma = indexOf(bytes, start, end, (byte) ',');
+			int optionEnd = (comma < 0) ? end : comma;
+			int optionStart = start;
+			while (optionStart < optionEnd && isWhitespace(bytes[optionStart]))
+				optionStart++;
+			while (optionEnd > optionStart && isWhitespace(bytes[optionEnd - 1]))
+				optionEnd--;
+
+			if (optionEnd - optionStart == KEEP_ALIVE.length && equalsIgnoreCase(bytes, optionStart, KEEP_ALIVE))
+				request.setConnectionKeepAlive(true);
+			else if (optionEnd - optionStart == CLOSE.length && equalsIgnoreCase(bytes, optionStart, CLOSE))
+				request.setConnectionClose(true);
+
+			start = (comma < 0) ? end : comma + 1;
+		}
+	}
+
+	private void parseContentLength(byte[] bytes, int start, int end, HttpRequest request)
+			throws RequestParseException {
+		if (start == end || end - start > 18)
+			throw new RequestParseException(400, "Malformed Content-Length");
+		long length = 0;
+		for (int i = start; i < end; i++) {
+			if (!isDigit(bytes[i]))
+				throw new RequestParseException(400, "Malformed Content-Length");
+			length = length * 10 + (bytes[i] - '0');
+		}
+		// it may be repeated, but only with the same value
+		if (contentLength >= 0 && contentLength != length)
+			throw new RequestParseException(400, "Conflicting Content-Length");
+		contentLength = length;
+		request.setContentLength(length);
+	}
+
+	private static int indexOf(byte[] bytes, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] bytes, int start, int end, byte b) {
+		for (int i = end - 1; i >= start; i--) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean matches(byte[] bytes, int start, int end, String s) {
+		if (end - start != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (bytes[start + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	// the name is lower case, and the caller has already checked the length
+	private static boolean equalsIgnoreCase(byte[] bytes, int start, byte[] name) {
+		for (int i = 0; i < name.length; i++) {
+			byte b = bytes[start + i];
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static String string(byte[] bytes, int start, int end) {
+		// header values are meant to be ASCII; anything else comes through as Latin-1
+		return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static String join(String first, String second) {
+		return (null == first) ? second : first + ", " + second;
+	}
+
+	private static int hexValue(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		return -1;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	private static boolean isTokenChar(byte b) {
+		if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9')
+			return true;
+		return "!#$%&'*+-.^_`|~".indexOf(b) >= 0;
+	}
+
+	private static CharsetDecoder newDecoder() {
+		return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,375 @@
+package org.ghi.external.HTTPLite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ResponseWriter puts together a response and writes it to a channel, with as
+ * little garbage as possible.
+ * 1) The status line and headers are written straight into a byte buffer that is
+ * 		reused for every response; status lines, header names and the fixed parts
+ * 		of the empty (error) responses are pre-encoded, and the Date header comes
+ * 		from the shared HttpDate clock
+ * 2) The body is a sequence of segments that are either already in memory (cached
+ * 		or memory-mapped files) or regions of a file on disk. Buffers are written to
+ * 		the channel as they are, and file regions are sent with FileChannel.transferTo,
+ * 		which lets the operating system send the file straight to the socket
+ *
+ * The same response can be written either in one go by a blocking worker (writeTo)
+ * or bit by bit, as the socket lets it, by a non-blocking event loop (writeSome).
+ * Either way, the writer remembers the status and length of the response, for the
+ * metrics and the access log.
+ *
+ * NOTE: A writer is not thread safe. Each connection gets its own and reuses it
+ * (clear) for every response. It holds open files until it is cleared.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class ResponseWriter {
+	// header names, pre-encoded
+	public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+	public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+	public static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+	public static final byte[] ETAG = ascii("ETag: ");
+	public static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+	public static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+	// and whole header lines
+	public static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+	public static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+	public static final byte[] CONNECTION_KEEPALIVE = ascii("Connection: keep-alive\r\n");
+	public static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+	public static final byte[] CACHE_CONTROL_NO_STORE = ascii("Cache-Control: no-store\r\n");
+
+	private static final byte[] SERVER = ascii("Server: RawHTTP\r\n");
+	private static final byte[] DATE = ascii("Date: ");
+	private static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+	private static final byte[] CRLF = ascii("\r\n");
+
+	// status lines, and the fixed part of the empty responses, indexed by status code
+	private static final byte[][] STATUS_LINES = new byte[600][];
+	private static final byte[][] EMPTY_RESPONSES = new byte[600][];
+
+	static {
+		statusLine(200, "OK");
+		statusLine(206, "Partial Content");
+		statusLine(304, "Not Modified");
+		statusLine(400, "Bad Request");
+		statusLine(403, "Forbidden");
+		statusLine(404, "Not Found");
+		statusLine(405, "Method Not Allowed");
+		statusLine(414, "URI Too Long");
+		statusLine(416, "Range Not Satisfiable");
+		statusLine(431, "Request Header Fields Too Large");
+		statusLine(500, "Internal Server Error");
+		statusLine(503, "Service Unavailable");
+		statusLine(505, "HTTP Version Not Supported");
+	}
+
+	private static final int INITIAL_HEAD_SIZE = 512;
+
+	// private variables
+	private ByteBuffer head;
+	private BufferSegment headSegment;
+	private List<Segment> segments;
+	private int current;
+	private int status;
+	private long headLength;
+	private long bodyLength;
+
+	public ResponseWriter() {
+		head = ByteBuffer.allocate(INITIAL_HEAD_SIZE);
+		headSegment = new BufferSegment(head);
+		segments = new ArrayList<Segment>();
+		current = 0;
+	}
+
+	/*
+	 * Starts a new response with the status line. The headers follow, ending with endHeaders().
+	 */
+	public void startResponse(int status) {
+		clear();
+		this.status = status;
+		put(STATUS_LINES[status]);
+	}
+
+	/*
+	 * Writes a complete response with no content: the status line, a text/plain
+	 * content type, a zero content length and the common headers
+	 */
+	public void writeEmptyResponse(int status, byte[] connection) {
+		clear();
+		this.status = status;
+		put(EMPTY_RESPONSES[status]);
+		writeDateAndConnection(connection);
+		endHeaders();
+	}
+
+	/*
+	 * Writes a 503 Service Unavailable that tells the client to come back in so many
+	 * seconds, and that we are closing the connection
+	 */
+	public void writeServiceUnavailable(long retryAfter) {
+		clear();
+		status = 503;
+		put(EMPTY_RESPONSES[503]);
+		writeHeader(RETRY_AFTER, retryAfter);
+		writeDateAndConnection(CONNECTION_CLOSE);
+		endHeaders();
+	}
+
+	public void writeHeader(byte[] name, String value) {
+		ensureCapacity(name.length + value.length() + CRLF.length);
+		head.put(name);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			// header values are ASCII; anything else has no business here
+			head.put(c < 128 ? (byte) c : (byte) '?');
+		}
+		head.put(CRLF);
+	}
+
+	public void writeHeader(byte[] name, long value) {
+		ensureCapacity(name.length + 20 + CRLF.length);
+		head.put(name);
+		putNumber(value);
+		head.put(CRLF);
+	}
+
+	public void writeHeaderLine(byte[] line) {
+		put(line);
+	}
+
+	/*
+	 * Writes "Content-Range: bytes first-last/length", or an unsatisfied range (an
+	 * asterisk instead of first-last) if first is negative
+	 */
+	public void writeContentRange(long first, long last, long length) {
+		ensureCapacity(CONTENT_RANGE.length + 3 * 20 + 2 + CRLF.length);
+		head.put(CONTENT_RANGE);
+		if (first < 0) {
+			head.put((byte) '*');
+		} else {
+			putNumber(first);
+			head.put((byte) '-');
+			putNumber(last);
+		}
+		head.put((byte) '/');
+		putNumber(length);
+		head.put(CRLF);
+	}
+
+	public void writeDateHeader(byte[] name, long millis) {
+		ensureCapacity(name.length + HttpDate.LENGTH + CRLF.length);
+		head.put(name);
+		HttpDate.write(head, millis);
+		head.put(CRLF);
+	}
+
+	/*
+	 * Writes the headers every response gets: Server, Date and the Connection header
+	 * line (CONNECTION_KEEPALIVE or CONNECTION_CLOSE), if it is not null
+	 */
+	public void writeCommonHeaders(byte[] connection) {
+		put(SERVER);
+		writeDateAndConnection(connection);
+	}
+
+	public void endHeaders() {
+		put(CRLF);
+		head.flip();
+		headLength = head.remaining();
+		// the head may have grown into a new buffer
+		headSegment.buffer = head;
+		segments.add(headSegment);
+	}
+
+	public void addBody(ByteBuffer buffer) {
+		segments.add(new BufferSegment(buffer));
+		bodyLength += buffer.remaining();
+	}
+
+	public void addBody(File file, long position, long count) throws IOException {
+		segments.add(new FileSegment(FileChannel.open(file.toPath(), StandardOpenOption.READ), position, count));
+		bodyLength += count;
+	}
+
+	public boolean isEmpty() {
+		return current >= segments.size();
+	}
+
+	/*
+	 * Writes the whole response to a blocking channel
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		while (!writeSome(channel)) {
+			// a blocking channel always makes progress, so this cannot spin
+		}
+	}
+
+	/*
+	 * Writes as much as the channel takes without blocking. Returns true once
+	 * the whole response is out.
+	 */
+	public boolean writeSome(WritableByteChannel channel) throws IOException {
+		while (current < segments.size()) {
+			Segment segment = segments.get(current);
+			if (!segment.writeSome(channel))
+				return false;
+			segment.close();
+			current++;
+		}
+		return true;
+	}
+
+	// the status code of the response, or 0 if there is none
+	public int getStatus() {
+		return status;
+	}
+
+	// the length of the content, without the head
+	public long getBodyLength() {
+		return bodyLength;
+	}
+
+	// the length of the whole response, head and content
+	public long getLength() {
+		return headLength + bodyLength;
+	}
+
+	/*
+	 * Forgets about the response (written or not) and releases the files
+	 */
+	public void clear() {
+		for (int i = current; i < segments.size(); i++)
+			segments.get(i).close();
+		segments.clear();
+		current = 0;
+		status = 0;
+		headLength = 0;
+		bodyLength = 0;
+		head.clear();
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private void writeDateAndConnection(byte[] connection) {
+		ensureCapacity(DATE.length + HttpDate.LENGTH + CRLF.length + CONNECTION_KEEPALIVE.length);
+		head.put(DATE);
+		head.put(HttpDate.now());
+		head.put(CRLF);
+		if (null != connection)
+			head.put(connection);
+	}
+
+	private void put(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		head.put(bytes);
+	}
+
+	private void putNumber(long value) {
+		if (value < 0) {
+			head.put((byte) '-');
+			value = -value;
+		}
+		// find the largest power of ten first, so we can write the digits in order
+		long divisor = 1;
+		while (value / divisor >= 10)
+			divisor *= 10;
+		for (; divisor > 0; divisor /= 10)
+			head.put((byte) ('0' + (value / divisor) % 10));
+	}
+
+	private void ensureCapacity(int length) {
+		if (head.remaining() >= length)
+			return;
+		// an unusually long header; this buffer is kept, so it only happens once
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(head.capacity() * 2, head.position() + length));
+		head.flip();
+		bigger.put(head);
+		head = bigger;
+	}
+
+	private static void statusLine(int status, String reason) {
+		STATUS_LINES[status] = ascii("HTTP/1.1 " + status + " " + reason + "\r\n");
+		EMPTY_RESPONSES[status] = ascii("HTTP/1.1 " + status + " " + reason + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Length: 0\r\n"
+				+ "Server: RawHTTP\r\n");
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * Private helper classes
+	 */
+	private interface Segment {
+
+		public boolean writeSome(WritableByteChannel channel) throws IOException;
+
+		public void close();
+	}
+
+	private static final class BufferSegment implements Segment {
+		private ByteBuffer buffer;
+
+		private BufferSegment(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public boolean writeSome(WritableByteChannel channel) throws IOException {
+			channel.write(buffer);
+			return !buffer.hasRemaining();
+		}
+
+		public void close() {
+			// nothing to release
+		}
+	}
+
+	private static final class FileSegment implements Segment {
+		private FileChannel file;
+		private long position;
+		private long remaining;
+
+		private FileSegment(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		public boolean writeSome(WritableByteChannel channel) throws IOException {
+			while (remaining > 0) {
+				long written = file.transferTo(position, remaining, channel);
+				if (0 == written) {
+					// either the socket is full, or the file got shorter than we promised
+					if (position >= file.size())
+						throw new IOException("File truncated while sending it");
+					return false;
+				}
+				position += written;
+				remaining -= written;
+			}
+			return true;
+		}
+
+		public void close() {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// ignore - there's nothing we can do
+			}
+		}
+	}
+
+}
@@ -1,11 +1,15 @@
 package org.ghi.external.HTTPLite;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -18,6 +22,16 @@ import org.apache.logging.log4j.Logger;
  * 		it waits for incoming connections (accept)
  * 		when a connection comes in it creates a worker to service it
  * 		it passes the worker to the thread pool for execution.
+ * 4) When stopped, it drains: it stops accepting, closes the idle connections, and gives
+ * 		the busy ones until the shutdown timeout to finish before closing them too
+ * 
+ * Connections that find every thread busy wait in a bounded backlog, and idle keep-alive
+ * connections give up their threads to them. Past the backlog (or the maximum number of
+ * connections) a connection gets an immediate 503 instead, so that waiting times stay
+ * bounded under overload.
+ * 
+ * The open connections, the threads in use and the connections waiting for one are
+ * all in the ServerMetrics.
  * 
  * NOTES: 
  * A) The worker is responsible for closing the client connection
@@ -26,16 +40,27 @@ import org.apache.logging.log4j.Logger;
  * @author George Hadjiyiannis
  *
  */
-public class ServerListener implements Runnable {
+public class ServerListener implements IServerListener {
+	// connections that may wait for a thread
+	public static final int DEFAULT_BACKLOG = 100;
+
 	// private variables
 	private IApplicationInjector injector;
 	private Logger logger;
 	private int port;
 	private int poolSize;
+	private int backlog;
+	private ConnectionManager connections;
 	private ServerSocket listenSocket;
-	private ExecutorService threadPool;
+	private ThreadPoolExecutor threadPool;
+	private LongAdder queued;
 
 	public ServerListener(IApplicationInjector injector, int port, int poolSize) throws ApplicationException {
+		this(injector, port, poolSize, DEFAULT_BACKLOG, new ConnectionManager());
+	}
+
+	public ServerListener(IApplicationInjector injector, int port, int poolSize, int backlog,
+			ConnectionManager connections) throws ApplicationException {
 		
 		// sanity check the inputs
 		if (null == injector)
@@ -50,56 +75,101 @@ public class ServerListener implements Runnable {
 			throw new ApplicationException("Invalid pool size " + poolSize);
 		this.poolSize = poolSize;
 		
+		if (backlog < 1)
+			throw new ApplicationException("Invalid backlog " + backlog);
+		this.backlog = backlog;
+		
+		if (null == connections)
+			throw new ApplicationException("Connection manager cannot be null!");
+		this.connections = connections;
+		// connections hold on to a thread each
+		this.connections.setThreads(poolSize);
+		
 		logger = LogManager.getLogger(ServerListener.class);
+		queued = new LongAdder();
 	}
 
 	public void run() {
 		
 		try {
 			
-			logger.info("Listening on port " + port);
+			logger.info("Listening on port {}", port);
 
 			// create a socket to listen on
-			listenSocket = new ServerSocket(port);
+			/*
+			 * NOTE: we get it from a channel, so that the sockets it accepts have channels
+			 * too; the workers need those to send files without copying them (transferTo)
+			 */
+			listenSocket = ServerSocketChannel.open().socket();
+			listenSocket.bind(new InetSocketAddress(port));
 			
-			// create a Thread pool to use for the workers
-			threadPool = Executors.newFixedThreadPool(poolSize);
+			// create a Thread pool to use for the workers, with a bounded queue in front of it
+			threadPool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(backlog));
+			registerMetrics();
 			
 			// loop waiting for connections
 			while(true) {
 				// this will block until a connection comes in
 				Socket clientSocket = listenSocket.accept();
 				
+				// too many already? tell the client to come back later
+				if (!connections.tryOpen()) {
+					connections.reject(clientSocket.getChannel());
+					continue;
+				}
+				
 				// create a worker to service the connection
 				/*
 				 * NOTE: the worker is responsible for closing the clientSocket
 				 */
-				Runnable worker = injector.getWorker(clientSocket);
+				Runnable worker;
+				try {
+					worker = injector.getWorker(clientSocket, connections);
+				} catch (ApplicationException a) {
+					// this connection is lost, but the next one may fare better
+					logger.error("Unknown error while setting up connection: ", a);
+					closeQuietly(clientSocket);
+					connections.closed();
+					continue;
+				}
 				// and execute in our thread pool
-				threadPool.execute(worker);
+				try {
+					threadPool.execute(worker);
+				} catch (RejectedExecutionException e) {
+					// the backlog is full
+					connections.reject(clientSocket.getChannel());
+					connections.closed();
+					continue;
+				}
+				
+				// if it has to wait for a thread, take one from an idle connection
+				if (connections.isOverloaded()) {
+					queued.increment();
+					connections.closeIdle();
+				}
 			}
 			
-		} catch (ApplicationException a) {
-			logger.error("Unknown error while setting up connection: ", a);
-		} catch (SocketException e) {
+		} catch (IOException e) {
 			/*
-			 * ignore it - we expect this to happen when stop() is called
-			 * cleanup will be handle in finally anyway
+			 * ignore it if the socket is closed - we expect this to happen when stop() is
+			 * called; cleanup will be handle in finally anyway
 			 */
-		} catch (IOException e) {
-			logger.error("Unknown error while setting up connection: ", e);
+			if (null == listenSocket || !listenSocket.isClosed())
+				logger.error("Unknown error while setting up connection: ", e);
 		} finally {
 			logger.info("Listener shutting down...");
 			
 			// let's make sure we clean up no matter how we exit
 			try {
-				if (!listenSocket.isClosed()) 
+				if (null != listenSocket && !listenSocket.isClosed()) 
 					listenSocket.close();
 			} catch (IOException e) {
 				logger.error("Unknown error while closing listening socket: ", e);
 			}
 			
-			threadPool.shutdown();
+			if (null != threadPool)
+				drain();
 		}
 	}
 
@@ -116,11 +186,54 @@ public class ServerListener implements Runnable {
 		 * Its not pretty but it's better for clarity for now
 		 */
 		try {
-			if (!listenSocket.isClosed()) 
+			if (null != listenSocket && !listenSocket.isClosed()) 
 				listenSocket.close();
 		} catch (IOException e) {
 			logger.error("Unknown error while closing listening socket: ", e);
 		}
 	}
 
+	/*
+	 * Private helper methods
+	 */
+	private void drain() {
+		// no more keep-alive, and the idle connections go now
+		connections.drain();
+		threadPool.shutdown();
+
+		// the busy ones get until the shutdown timeout to finish what they are doing
+		try {
+			if (threadPool.awaitTermination(connections.getShutdownTimeout(), TimeUnit.MILLISECONDS))
+				return;
+			logger.warn("Connections still busy after {}ms, closing them", connections.getShutdownTimeout());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		connections.closeAll();
+		threadPool.shutdownNow();
+	}
+
+	private static void closeQuietly(Socket clientSocket) {
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			// ignore - there's nothing we can do
+		}
+	}
+
+	private void registerMetrics() {
+		ServerMetrics metrics = injector.getMetrics();
+		metrics.registerGauge("connections_open", "Connections open now.", connections::getOpenConnections);
+		metrics.registerCounter("connections_accepted_total", "Connections accepted.",
+				connections::getAcceptedConnections);
+		metrics.registerCounter("connections_rejected_total", "Connections turned away with a 503.",
+				connections::getRejectedConnections);
+		metrics.registerCounter("connections_queued_total", "Connections that had to wait for a thread.",
+				queued::sum);
+		metrics.registerGauge("pool_threads", "Threads in the pool.", threadPool::getPoolSize);
+		metrics.registerGauge("pool_active_threads", "Threads serving a connection.", threadPool::getActiveCount);
+		metrics.registerGauge("pool_queued_connections", "Connections waiting for a thread now.",
+				() -> threadPool.getQueue().size());
+	}
+
 }
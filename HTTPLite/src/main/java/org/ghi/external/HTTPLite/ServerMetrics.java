@@ -0,0 +1,261 @@
+package org.ghi.external.HTTPLite;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The ServerMetrics keep count of what the server does, cheaply enough to be on for
+ * every request.
+ * 1) Counters (LongAdder, so that threads do not fight over a cache line) for the
+ * 		requests by method, the responses by status and the bytes sent
+ * 2) Latency histograms (see LatencyHistogram) for the phases of a request: parsing
+ * 		the head, looking up the file (everything the handler does before the response
+ * 		is ready) and writing the response out, all in nanoseconds
+ * 3) Named values that are looked up only when asked for (the open connections, the
+ * 		threads in use, the cache statistics), registered by whoever owns them
+ *
+ * The StatusPage shows all of them, as JSON or in the Prometheus text format.
+ *
+ * NOTE: This is thread safe, and shared by all the threads of the server.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class ServerMetrics {
+	// the methods we count separately; everything else is "other"
+	private static final String[] METHODS = { HttpRequest.GET, HttpRequest.HEAD, "other" };
+
+	// private variables
+	private long started;
+	private LongAdder[] requests;
+	private AtomicReferenceArray<LongAdder> responses;
+	private LongAdder bytesSent;
+	private LatencyHistogram parseTimes;
+	private LatencyHistogram lookupTimes;
+	private LatencyHistogram writeTimes;
+	private Map<String, Value> values;
+
+	public ServerMetrics() {
+		started = System.currentTimeMillis();
+		requests = new LongAdder[METHODS.length];
+		for (int i = 0; i < requests.length; i++)
+			requests[i] = new LongAdder();
+		// most status codes never happen, so their counters are only created when they do
+		responses = new AtomicReferenceArray<LongAdder>(600);
+		bytesSent = new LongAdder();
+		parseTimes = new LatencyHistogram();
+		lookupTimes = new LatencyHistogram();
+		writeTimes = new LatencyHistogram();
+		values = new ConcurrentSkipListMap<String, Value>();
+	}
+
+	/*
+	 * Counts a response once it is out: the method of the request (null if it could
+	 * not be parsed), the status, and the bytes of the head and body
+	 */
+	public void served(String method, int status, long bytes) {
+		if (null != method) {
+			if (method.equals(HttpRequest.GET))
+				requests[0].increment();
+			else if (method.equals(HttpRequest.HEAD))
+				requests[1].increment();
+			else
+				requests[2].increment();
+		}
+
+		if (status > 0 && status < responses.length()) {
+			LongAdder counter = responses.get(status);
+			if (null == counter) {
+				responses.compareAndSet(status, null, new LongAdder());
+				counter = responses.get(status);
+			}
+			counter.increment();
+		}
+		bytesSent.add(bytes);
+	}
+
+	public LatencyHistogram getParseTimes() {
+		return parseTimes;
+	}
+
+	public LatencyHistogram getLookupTimes() {
+		return lookupTimes;
+	}
+
+	public LatencyHistogram getWriteTimes() {
+		return writeTimes;
+	}
+
+	/*
+	 * Registers a value that only goes up (a count of something), or replaces the
+	 * one registered under the same name. Names are lower case, with underscores, and
+	 * end in _total.
+	 */
+	public void registerCounter(String name, String help, LongSupplier value) {
+		values.put(name, new Value(help, true, value));
+	}
+
+	/*
+	 * Registers a value that goes up and down (how many of something there are now)
+	 */
+	public void registerGauge(String name, String help, LongSupplier value) {
+		values.put(name, new Value(help, false, value));
+	}
+
+	public long getUptime() {
+		return System.currentTimeMillis() - started;
+	}
+
+	public long getRequests(String method) {
+		for (int i = 0; i < METHODS.length; i++) {
+			if (METHODS[i].equals(method))
+				return requests[i].sum();
+		}
+		return 0;
+	}
+
+	public long getResponses(int status) {
+		LongAdder counter = (status > 0 && status < responses.length()) ? responses.get(status) : null;
+		return (null == counter) ? 0 : counter.sum();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/*
+	 * Writes everything out as a JSON object; latencies are in microseconds
+	 */
+	public void writeJson(StringBuilder out) {
+		out.append("{\n");
+		out.append("  \"uptime_ms\": ").append(getUptime()).append(",\n");
+
+		out.append("  \"requests\": {");
+		for (int i = 0; i < METHODS.length; i++)
+			out.append((i > 0) ? ", " : "").append('"').append(METHODS[i]).append("\": ").append(requests[i].sum());
+		out.append("},\n");
+
+		out.append("  \"responses\": {");
+		String separator = "";
+		for (int status = 0; status < responses.length(); status++) {
+			LongAdder counter = responses.get(status);
+			if (null == counter)
+				continue;
+			out.append(separator).append('"').append(status).append("\": ").append(counter.sum());
+			separator = ", ";
+		}
+		out.append("},\n");
+
+		out.append("  \"bytes_sent\": ").append(bytesSent.sum()).append(",\n");
+
+		for (Map.Entry<String, Value> entry : values.entrySet())
+			out.append("  \"").append(entry.getKey()).append("\": ").append(entry.getValue().get()).append(",\n");
+
+		out.append("  \"latency_us\": {\n");
+		writeJson(out, "parse", parseTimes, ",\n");
+		writeJson(out, "lookup", lookupTimes, ",\n");
+		writeJson(out, "write", writeTimes, "\n");
+		out.append("  }\n");
+		out.append("}\n");
+	}
+
+	/*
+	 * Writes everything out in the Prometheus text exposition format; latencies are
+	 * summaries, in seconds
+	 */
+	public void writePrometheus(StringBuilder out) {
+		header(out, "httplite_uptime_seconds", "Time since the server started.", "gauge");
+		out.append("httplite_uptime_seconds ").append(getUptime() / 1000.0).append('\n');
+
+		header(out, "httplite_requests_total", "Requests served, by method.", "counter");
+		for (int i = 0; i < METHODS.length; i++)
+			out.append("httplite_requests_total{method=\"").append(METHODS[i]).append("\"} ")
+					.append(requests[i].sum()).append('\n');
+
+		header(out, "httplite_responses_total", "Responses sent, by status code.", "counter");
+		for (int status = 0; status < responses.length(); status++) {
+			LongAdder counter = responses.get(status);
+			if (null != counter)
+				out.append("httplite_responses_total{status=\"").append(status).append("\"} ")
+						.append(counter.sum()).append('\n');
+		}
+
+		header(out, "httplite_sent_bytes_total", "Bytes sent, headers included.", "counter");
+		out.append("httplite_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+
+		for (Map.Entry<String, Value> entry : values.entrySet()) {
+			Value value = entry.getValue();
+			String name = "httplite_" + entry.getKey();
+			header(out, name, value.help, value.counter ? "counter" : "gauge");
+			out.append(name).append(' ').append(value.get()).append('\n');
+		}
+
+		writePrometheus(out, "httplite_parse_seconds", "Time spent parsing request heads.", parseTimes);
+		writePrometheus(out, "httplite_lookup_seconds", "Time spent finding the file and preparing the response.",
+				lookupTimes);
+		writePrometheus(out, "httplite_write_seconds", "Time spent writing responses out.", writeTimes);
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static void writeJson(StringBuilder out, String name, LatencyHistogram histogram, String end) {
+		out.append("    \"").append(name).append("\": {");
+		out.append("\"count\": ").append(histogram.getCount());
+		out.append(", \"mean\": ").append(micros(Math.round(histogram.getMean())));
+		out.append(", \"p50\": ").append(micros(histogram.getPercentile(50)));
+		out.append(", \"p90\": ").append(micros(histogram.getPercentile(90)));
+		out.append(", \"p99\": ").append(micros(histogram.getPercentile(99)));
+		out.append(", \"p999\": ").append(micros(histogram.getPercentile(99.9)));
+		out.append(", \"max\": ").append(micros(histogram.getMax()));
+		out.append('}').append(end);
+	}
+
+	private static void writePrometheus(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+		header(out, name, help, "summary");
+		quantile(out, name, "0.5", histogram.getPercentile(50));
+		quantile(out, name, "0.9", histogram.getPercentile(90));
+		quantile(out, name, "0.99", histogram.getPercentile(99));
+		quantile(out, name, "0.999", histogram.getPercentile(99.9));
+		out.append(name).append("_sum ").append(histogram.getSum() / 1e9).append('\n');
+		out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void quantile(StringBuilder out, String name, String quantile, long nanos) {
+		out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(nanos / 1e9).append('\n');
+	}
+
+	// nanoseconds as microseconds, to a tenth
+	private static String micros(long nanos) {
+		return String.valueOf(nanos / 100 / 10.0);
+	}
+
+	/*
+	 * Helper classes
+	 */
+	// a registered value, looked up when it is shown
+	private static final class Value {
+		private final String help;
+		private final boolean counter;
+		private final LongSupplier supplier;
+
+		private Value(String help, boolean counter, LongSupplier supplier) {
+			this.help = help;
+			this.counter = counter;
+			this.supplier = supplier;
+		}
+
+		private long get() {
+			return supplier.getAsLong();
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.ghi.external.HTTPLite;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The StatusPage is the response to requests for the status path (/server-status by
+ * default): the ServerMetrics, as JSON, or in the Prometheus text format when the
+ * query asks for it (/server-status?format=prometheus). Unless configured otherwise
+ * it is only shown to clients on the same machine; everyone else gets 403 Forbidden.
+ *
+ * NOTE: This is thread safe, and shared by all the threads of the server.
+ *
+ * @author George Hadjiyiannis
+ *
+ */
+public class StatusPage {
+	public static final String DEFAULT_PATH = "/server-status";
+
+	public static final String JSON = "application/json";
+	public static final String PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+	// private variables
+	private String path;
+	private boolean remoteAccess;
+	private ServerMetrics metrics;
+
+	public StatusPage(String path, boolean remoteAccess, ServerMetrics metrics) throws ApplicationException {
+		// sanity check the inputs
+		if (null == path || !path.startsWith("/"))
+			throw new ApplicationException("Invalid status path " + path);
+		this.path = path;
+		this.remoteAccess = remoteAccess;
+
+		if (null == metrics)
+			throw new ApplicationException("Metrics cannot be null!");
+		this.metrics = metrics;
+	}
+
+	public boolean matches(String requestPath) {
+		return path.equals(requestPath);
+	}
+
+	// a client with no address (not a socket) can only be local
+	public boolean isAllowed(InetAddress client) {
+		return remoteAccess || null == client || client.isLoopbackAddress();
+	}
+
+	/*
+	 * Returns the content type of the page the query asks for: Prometheus if it has a
+	 * format=prometheus parameter, JSON otherwise
+	 */
+	public String getContentType(String query) {
+		if (null == query)
+			return JSON;
+		for (String parameter : query.split("&")) {
+			if (parameter.equals("format=prometheus"))
+				return PROMETHEUS;
+		}
+		return JSON;
+	}
+
+	/*
+	 * Returns the page, in the content type given by getContentType
+	 */
+	public ByteBuffer render(String contentType) {
+		StringBuilder out = new StringBuilder(4096);
+		if (contentType.equals(PROMETHEUS))
+			metrics.writePrometheus(out);
+		else
+			metrics.writeJson(out);
+		return ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/*
+ * This tests the AccessLog against a stream in memory
+ */
+public class AccessLogTest {
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_FormatUnknown() throws ApplicationException {
+		new AccessLog("access.log", "no_such_format", 16);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_BufferSizeInvalid() throws ApplicationException {
+		new AccessLog(new ByteArrayOutputStream(), true, 0);
+	}
+
+	@Test
+	public void test_Combined() throws ApplicationException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AccessLog log = new AccessLog(out, true, 16);
+		log.log(request("GET", "/index.html?a=b", "http://localhost/", "Mozilla \"quoted\"\t"), response(200, 1234));
+		log.close();
+
+		String line = out.toString();
+		assertTrue(line, line.matches("127\\.0\\.0\\.1 - - \\[\\d\\d/\\w\\w\\w/\\d{4}:\\d\\d:\\d\\d:\\d\\d [+-]\\d{4}\\] "
+				+ "\"GET /index.html\\?a=b HTTP/1.1\" 200 1234 \"http://localhost/\" "
+				+ "\"Mozilla \\\\\"quoted\\\\\"\\\\x09\"\n"));
+		assertEquals(1, log.getLogged());
+	}
+
+	@Test
+	public void test_Common() throws ApplicationException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AccessLog log = new AccessLog(out, false, 16);
+		log.log(request("HEAD", "/", null, "curl"), response(304, 0));
+		// a request we could not parse
+		HttpRequest bad = new HttpRequest();
+		log.log(bad, response(400, 0));
+		log.close();
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].endsWith("] \"HEAD / HTTP/1.1\" 304 -"));
+		assertTrue(lines[1], lines[1].startsWith("- - - ["));
+		assertTrue(lines[1], lines[1].endsWith("] \"-\" 400 -"));
+	}
+
+	@Test
+	public void test_Dropped_WhenFull() throws ApplicationException, InterruptedException {
+		// the writer is stuck until we let it go, so the ring fills up
+		final CountDownLatch release = new CountDownLatch(1);
+		final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		OutputStream out = new OutputStream() {
+			public void write(int b) {
+				lines.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				lines.write(b, off, len);
+			}
+		};
+		AccessLog log = new AccessLog(out, false, 4);
+		HttpRequest request = request("GET", "/", null, null);
+		ResponseWriter response = response(200, 10);
+		// the first one may already be on its way out; the rest have to fit in the ring
+		log.log(request, response);
+		Thread.sleep(100);
+		for (int i = 0; i < 10; i++)
+			log.log(request, response);
+		assertEquals(6, log.getDropped());
+
+		release.countDown();
+		log.close();
+		assertEquals(5, log.getLogged());
+		assertEquals(5, lines.toString().split("\n").length);
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static HttpRequest request(String method, String target, String referer, String userAgent) {
+		HttpRequest request = new HttpRequest();
+		request.setMethod(method);
+		request.setPath(target);
+		request.setTarget(target);
+		request.setHttp11(true);
+		request.setReferer(referer);
+		request.setUserAgent(userAgent);
+		request.setRemoteAddress(InetAddress.getLoopbackAddress());
+		return request;
+	}
+
+	private static ResponseWriter response(int status, int length) {
+		ResponseWriter response = new ResponseWriter();
+		response.startResponse(status);
+		response.endHeaders();
+		if (length > 0)
+			response.addBody(ByteBuffer.wrap(new byte[length]));
+		return response;
+	}
+
+}
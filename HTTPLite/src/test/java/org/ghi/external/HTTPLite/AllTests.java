@@ -5,7 +5,10 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ FileUtilTest.class, IntegrationTest.class, ConnectedWorkerTest.class })
+@SuiteClasses({ FileUtilTest.class, CachingFileUtilTest.class, HttpDateTest.class, RequestParserTest.class,
+		ByteRangesTest.class, CompressionCacheTest.class, ConnectionManagerTest.class,
+		IntegrationTest.class, ConnectedWorkerTest.class, LatencyHistogramTest.class,
+		ServerMetricsTest.class, AccessLogTest.class })
 public class AllTests {
 
 }
@@ -0,0 +1,56 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/*
+ * This tests the parsing of Range headers against a 1000 byte file
+ */
+public class ByteRangesTest {
+
+	@Test
+	public void test_SingleRanges() {
+		assertArrayEquals(new long[] { 0, 499 }, ByteRanges.parse("bytes=0-499", 1000));
+		assertArrayEquals(new long[] { 500, 999 }, ByteRanges.parse("bytes=500-", 1000));
+		assertArrayEquals(new long[] { 500, 999 }, ByteRanges.parse("bytes=-500", 1000));
+		assertArrayEquals(new long[] { 0, 0 }, ByteRanges.parse("Bytes=0-0", 1000));
+		// ranges past the end stop at the end
+		assertArrayEquals(new long[] { 900, 999 }, ByteRanges.parse("bytes=900-5000", 1000));
+		assertArrayEquals(new long[] { 0, 999 }, ByteRanges.parse("bytes=-5000", 1000));
+	}
+
+	@Test
+	public void test_MultipleRanges_SortedAndMerged() {
+		assertArrayEquals(new long[] { 0, 9, 990, 999 }, ByteRanges.parse("bytes=-10, 0-9", 1000));
+		// overlapping and adjacent ranges become one
+		assertArrayEquals(new long[] { 0, 29 }, ByteRanges.parse("bytes=0-9,5-19,20-29", 1000));
+		// unsatisfiable ones are dropped
+		assertArrayEquals(new long[] { 0, 9 }, ByteRanges.parse("bytes=0-9,2000-3000", 1000));
+	}
+
+	@Test
+	public void test_Unsatisfiable() {
+		assertArrayEquals(new long[0], ByteRanges.parse("bytes=1000-", 1000));
+		assertArrayEquals(new long[0], ByteRanges.parse("bytes=-0", 1000));
+		assertArrayEquals(new long[0], ByteRanges.parse("bytes=0-10", 0));
+	}
+
+	@Test
+	public void test_Ignored() {
+		assertNull(ByteRanges.parse(null, 1000));
+		assertNull(ByteRanges.parse("items=0-9", 1000));
+		assertNull(ByteRanges.parse("bytes=", 1000));
+		assertNull(ByteRanges.parse("bytes=9-0", 1000));
+		assertNull(ByteRanges.parse("bytes=a-b", 1000));
+		assertNull(ByteRanges.parse("bytes=0-9,x", 1000));
+		assertNull(ByteRanges.parse("bytes=-", 1000));
+
+		// too many ranges
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= ByteRanges.MAX_RANGES; i++)
+			header.append(",").append(2 * i).append("-").append(2 * i);
+		assertNull(ByteRanges.parse(header.toString(), 1000));
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * This tests CachingFileUtil the same way FileUtilTest tests FileUtil against the
+ * sample document root, plus the caching itself against a scratch directory.
+ */
+public class CachingFileUtilTest {
+	// for speed, create one and use it for as many tests as possible
+	private static CachingFileUtil fileUtil;
+	// and a scratch document root we can change at will
+	private static Path scratchRoot;
+	private static CachingFileUtil scratchFileUtil;
+
+	@BeforeClass
+	public static void beforeClass() throws ApplicationException, IOException {
+		// lets use the same config as the application
+		Properties properties = HTTPLite.getConfigPropertiesFromClasspath();
+		// extract Document Root
+		String documentRoot = properties.getProperty(HTTPLite.KEY_DOCUMENT_ROOT);
+		// create a CachingFileUtil instance to test
+		fileUtil = new CachingFileUtil(documentRoot, 1024 * 1024, 64 * 1024, 1000);
+
+		// a small cache so that we can see evictions
+		scratchRoot = Files.createTempDirectory("httplite");
+		scratchFileUtil = new CachingFileUtil(scratchRoot.toString(), 100, 60, 1000);
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		fileUtil.close();
+		scratchFileUtil.close();
+		for (File file : scratchRoot.toFile().listFiles())
+			file.delete();
+		Files.delete(scratchRoot);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_DocumentRootNull() throws ApplicationException {
+		new CachingFileUtil(null, 1024, 1024, 10);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_CacheSizeInvalid() throws ApplicationException {
+		new CachingFileUtil(scratchRoot.toString(), -1, 1024, 10);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_MaxEntriesInvalid() throws ApplicationException {
+		new CachingFileUtil(scratchRoot.toString(), 1024, 1024, 0);
+	}
+
+	@Test
+	public void test_GetOK_ImplicitHTMLFileFromPath() {
+		File file = fileUtil.getFileFromPath("/blog/its_a_start");
+		// check that we got the right file
+		assertEquals(18396, fileUtil.getContentLength(file));
+		// and again, this time from the cache
+		assertEquals(file, fileUtil.getFileFromPath("/blog/its_a_start"));
+	}
+
+	@Test
+	public void test_ReturnsFalse_Exists() {
+		File file = fileUtil.getFileFromPath("/no_such_file");
+		assertFalse(fileUtil.exists(file));
+	}
+
+	@Test
+	public void test_ReturnsFalse_Readable() {
+		File file = fileUtil.getFileFromPath("/not_readable.html");
+		assertFalse(fileUtil.isReadable(file));
+	}
+
+	@Test
+	public void test_ContentTypes() throws ApplicationException {
+		assertEquals("text/html", fileUtil.getContentType(fileUtil.getFileFromPath("/index.html")));
+		assertEquals("text/css", fileUtil.getContentType(fileUtil.getFileFromPath("/css/main.min.css")));
+		assertEquals("image/jpeg", fileUtil.getContentType(fileUtil.getFileFromPath("/img/main/logo.jpg")));
+		// unlike FileUtil, this does not depend on the detectors installed on the system
+		assertEquals("text/javascript", fileUtil.getContentType(fileUtil.getFileFromPath("/js/main.js")));
+	}
+
+	@Test
+	public void test_Content_SmallFile() throws ApplicationException, IOException {
+		File file = fileUtil.getFileFromPath("/index.html");
+
+		// the first time it may or may not be a hit, the second time it must be
+		ByteBuffer first = fileUtil.getContent(file);
+		long hits = fileUtil.getContentHits();
+		ByteBuffer second = fileUtil.getContent(file);
+		assertEquals(hits + 1, fileUtil.getContentHits());
+
+		// and it must be the content of the file
+		assertEquals(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), first);
+		assertEquals(first, second);
+	}
+
+	@Test
+	public void test_Content_NullWhen_LargeFile() throws ApplicationException {
+		File file = fileUtil.getFileFromPath("/img/main/logo.jpg");
+		assertNull(fileUtil.getContent(file));
+	}
+
+	@Test
+	public void test_Content_MappedWhen_MediumFile() throws ApplicationException, IOException,
+			InterruptedException {
+		CachingFileUtil mappingFileUtil = new CachingFileUtil(scratchRoot.toString(), 100, 60, 1000, 1000, 500);
+		try {
+			File file = writeScratchFile("medium.txt", 200);
+			ByteBuffer buffer = mappingFileUtil.getContent(file);
+			// too big for the heap, small enough to map
+			assertTrue(buffer.isDirect());
+			assertEquals(200, buffer.remaining());
+			// nothing is cached while the WatchService is still reporting its creation, so give it time
+			for (int i = 0; i < 150 && 0 == mappingFileUtil.getMappedBytes(); i++) {
+				Thread.sleep(100);
+				mappingFileUtil.getContent(file);
+			}
+			assertEquals(200, mappingFileUtil.getMappedBytes());
+			assertEquals(0, mappingFileUtil.getCachedBytes());
+
+			// too big for either
+			assertNull(mappingFileUtil.getContent(writeScratchFile("large.txt", 600)));
+		} finally {
+			mappingFileUtil.close();
+		}
+	}
+
+	@Test
+	public void test_Content_NullWhen_NotCaching() throws ApplicationException, IOException {
+		File file = writeScratchFile("not_cached.txt", 10);
+		CachingFileUtil closedFileUtil = new CachingFileUtil(scratchRoot.toString(), 100, 60, 1000);
+		// once closed it stops caching
+		closedFileUtil.close();
+		assertNull(closedFileUtil.getContent(file));
+		assertEquals(10, closedFileUtil.getContentLength(file));
+	}
+
+	@Test
+	public void test_Content_Evicted() throws ApplicationException, IOException, InterruptedException {
+		// two files that do not fit in the cache together
+		File first = writeScratchFile("evict_first.txt", 60);
+		File second = writeScratchFile("evict_second.txt", 60);
+		long evictions = scratchFileUtil.getEvictions();
+
+		// nothing is cached while the WatchService is still reporting their creation, so give it time
+		for (int i = 0; i < 150 && scratchFileUtil.getEvictions() == evictions; i++) {
+			assertNotNull(scratchFileUtil.getContent(first));
+			assertNotNull(scratchFileUtil.getContent(second));
+			Thread.sleep(100);
+		}
+
+		assertTrue(scratchFileUtil.getEvictions() > evictions);
+		assertTrue(scratchFileUtil.getCachedBytes() <= 100);
+	}
+
+	@Test
+	public void test_Content_InvalidatedWhen_FileChanges() throws ApplicationException, IOException,
+			InterruptedException {
+		File file = writeScratchFile("changing.txt", 10);
+		assertEquals(10, scratchFileUtil.getContent(file).remaining());
+
+		// change it behind the cache's back, and give the WatchService time to notice
+		writeScratchFile("changing.txt", 20);
+		for (int i = 0; i < 150 && scratchFileUtil.getContentLength(file) != 20; i++)
+			Thread.sleep(100);
+
+		assertEquals(20, scratchFileUtil.getContentLength(file));
+		assertEquals(20, scratchFileUtil.getContent(file).remaining());
+	}
+
+	@Test
+	public void test_Exists_CachedWhen_Missing() {
+		File file = scratchFileUtil.getFileFromPath("/never_there.txt");
+		assertFalse(scratchFileUtil.exists(file));
+
+		// the second time it comes from the cache
+		long misses = scratchFileUtil.getMetadataMisses();
+		assertFalse(scratchFileUtil.exists(file));
+		assertEquals(misses, scratchFileUtil.getMetadataMisses());
+	}
+
+	@Test
+	public void test_Exists_InvalidatedWhen_FileCreated() throws IOException, InterruptedException {
+		File file = scratchFileUtil.getFileFromPath("/created_later.txt");
+		assertFalse(scratchFileUtil.exists(file));
+
+		writeScratchFile("created_later.txt", 10);
+		for (int i = 0; i < 150 && !scratchFileUtil.exists(file); i++)
+			Thread.sleep(100);
+
+		assertTrue(scratchFileUtil.exists(file));
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private File writeScratchFile(String name, int length) throws IOException {
+		Path path = scratchRoot.resolve(name);
+		Files.write(path, new byte[length]);
+		return path.toFile();
+	}
+
+}
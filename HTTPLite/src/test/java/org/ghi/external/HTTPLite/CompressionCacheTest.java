@@ -0,0 +1,286 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/*
+ * This tests the CompressionCache against a scratch directory, with a small cache so
+ * that we can see evictions
+ */
+public class CompressionCacheTest {
+	private static Path scratchRoot;
+	private static FileUtil fileUtil;
+	private static CompressionCache cache;
+
+	@BeforeClass
+	public static void beforeClass() throws ApplicationException, IOException {
+		scratchRoot = Files.createTempDirectory("httplite");
+		fileUtil = new FileUtil(scratchRoot.toString());
+		cache = new CompressionCache(fileUtil, 100, 100000, 1000);
+	}
+
+	@AfterClass
+	public static void afterClass() throws IOException {
+		for (File file : scratchRoot.toFile().listFiles())
+			file.delete();
+		Files.delete(scratchRoot);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_FileUtilNull() throws ApplicationException {
+		new CompressionCache(null, 100, 1000, 1000);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_CacheSizeInvalid() throws ApplicationException {
+		new CompressionCache(fileUtil, 100, 1000, -1);
+	}
+
+	@Test
+	public void test_Quality() {
+		assertEquals(1, CompressionCache.getQuality("gzip, deflate, br", "br"), 0);
+		assertEquals(0.5, CompressionCache.getQuality("br;q=0.5, GZIP", "br"), 0);
+		assertEquals(1, CompressionCache.getQuality("br;q=0.5, GZIP", "gzip"), 0);
+		assertEquals(0, CompressionCache.getQuality("gzip;q=0", "gzip"), 0);
+		assertEquals(0, CompressionCache.getQuality("deflate", "gzip"), 0);
+		// * stands for everything that is not listed
+		assertEquals(0.1, CompressionCache.getQuality("br, *;q=0.1", "gzip"), 0);
+		assertEquals(0, CompressionCache.getQuality("gzip;q=0, *", "gzip"), 0);
+		assertEquals(0, CompressionCache.getQuality("", "gzip"), 0);
+	}
+
+	@Test
+	public void test_Gzip_OnTheFly() throws ApplicationException, IOException {
+		File file = writeScratchFile("text.html", text(2000));
+		CompressionCache.Variant variant = select(cache, file, "text/html", "gzip, deflate");
+		assertNotNull(variant);
+		assertEquals(CompressionCache.GZIP, variant.getEncoding());
+		assertNull(variant.getFile());
+
+		// it unpacks to the file, and has an entity tag of its own
+		ByteBuffer content = variant.getContent();
+		assertEquals(variant.getLength(), content.remaining());
+		assertArrayEquals(Files.readAllBytes(file.toPath()), gunzip(content));
+		assertNotEquals(fileUtil.getETag(file), variant.getETag());
+		assertTrue(variant.getETag().endsWith("-gzip\""));
+
+		// the second time it comes from the cache
+		assertSame(variant, select(cache, file, "text/html", "gzip"));
+	}
+
+	@Test
+	public void test_Gzip_ETagWithoutCompressing() throws ApplicationException, IOException {
+		// a cache of its own, so that we can see nothing was compressed
+		CompressionCache fresh = new CompressionCache(fileUtil, 100, 100000, 100000);
+		File file = writeScratchFile("etag.html", text(2000));
+		CompressionCache.Selection selection = fresh.select(file, "text/html", "gzip");
+		assertTrue(selection.varies());
+		assertEquals(CompressionCache.GZIP, selection.getEncoding());
+		assertEquals(0, fresh.getCachedFiles());
+
+		// and it is the one the compressed variant ends up with
+		assertEquals(selection.getETag(), fresh.getVariant(selection, true).getETag());
+		assertEquals(1, fresh.getCachedFiles());
+
+		// once we know it does not pay, it is not picked any more
+		byte[] random = new byte[1000];
+		new Random(42).nextBytes(random);
+		File incompressible = writeScratchFile("etag_random.txt", random);
+		selection = fresh.select(incompressible, "text/plain", "gzip");
+		assertEquals(CompressionCache.GZIP, selection.getEncoding());
+		assertNull(fresh.getVariant(selection, true));
+		assertNull(fresh.select(incompressible, "text/plain", "gzip").getEncoding());
+	}
+
+	@Test
+	public void test_Gzip_InBackgroundWhen_CannotWait() throws ApplicationException, IOException,
+			InterruptedException {
+		CompressionCache fresh = new CompressionCache(fileUtil, 100, 100000, 100000);
+		File file = writeScratchFile("background.html", text(2000));
+
+		// nothing to send yet, but it is on its way
+		CompressionCache.Selection selection = fresh.select(file, "text/html", "gzip");
+		assertNull(fresh.getVariant(selection, false));
+		CompressionCache.Variant variant = null;
+		for (int i = 0; i < 100 && null == variant; i++) {
+			Thread.sleep(50);
+			variant = fresh.getVariant(selection, false);
+		}
+		assertNotNull(variant);
+		assertArrayEquals(Files.readAllBytes(file.toPath()), gunzip(variant.getContent()));
+	}
+
+	@Test
+	public void test_Gzip_RecompressedWhen_FileChanges() throws ApplicationException, IOException {
+		File file = writeScratchFile("changing.css", text(1000));
+		CompressionCache.Variant first = select(cache, file, "text/css", "gzip");
+
+		writeScratchFile("changing.css", text(1500));
+		file.setLastModified(file.lastModified() + 2000);
+		CompressionCache.Variant second = select(cache, file, "text/css", "gzip");
+		assertNotSame(first, second);
+		assertArrayEquals(Files.readAllBytes(file.toPath()), gunzip(second.getContent()));
+	}
+
+	@Test
+	public void test_NullWhen_NotWorthIt() throws ApplicationException, IOException {
+		// not accepted
+		File file = writeScratchFile("accepted.txt", text(1000));
+		assertNull(select(cache, file, "text/plain", null));
+		assertNull(select(cache, file, "text/plain", "identity"));
+		assertNull(select(cache, file, "text/plain", "gzip;q=0"));
+		// not compressible
+		assertNull(select(cache, file, "image/jpeg", "gzip"));
+		// too small
+		assertNull(select(cache, writeScratchFile("small.txt", text(50)), "text/plain", "gzip"));
+		// does not get any smaller
+		byte[] random = new byte[1000];
+		new Random(42).nextBytes(random);
+		assertNull(select(cache, writeScratchFile("random.txt", random), "text/plain", "gzip"));
+	}
+
+	@Test
+	public void test_Siblings() throws ApplicationException, IOException {
+		File file = writeScratchFile("sibling.js", text(1000));
+		File gz = writeScratchFile("sibling.js.gz", new byte[10]);
+		File br = writeScratchFile("sibling.js.br", new byte[5]);
+		assertTrue(cache.select(file, "application/octet-stream", null).varies());
+
+		// br, unless the client prefers gzip
+		CompressionCache.Variant variant = select(cache, file, "text/javascript", "gzip, br");
+		assertEquals(CompressionCache.BR, variant.getEncoding());
+		assertEquals(br, variant.getFile());
+		assertEquals(5, variant.getLength());
+		assertNull(variant.getContent());
+		variant = select(cache, file, "text/javascript", "gzip, br;q=0.5");
+		assertEquals(CompressionCache.GZIP, variant.getEncoding());
+		assertEquals(gz, variant.getFile());
+
+		// the entity tag follows the sibling, even if the file itself is untouched
+		String etag = variant.getETag();
+		assertEquals(etag, cache.select(file, "text/javascript", "gzip").getETag());
+		writeScratchFile("sibling.js.gz", new byte[12]);
+		assertNotEquals(etag, select(cache, file, "text/javascript", "gzip, br;q=0.5").getETag());
+
+		// siblings older than the file are ignored, so it is compressed on the fly
+		br.setLastModified(file.lastModified() - 10000);
+		gz.setLastModified(file.lastModified() - 10000);
+		variant = select(cache, file, "text/javascript", "gzip, br");
+		assertEquals(CompressionCache.GZIP, variant.getEncoding());
+		assertNull(variant.getFile());
+		assertFalse(cache.select(file, "application/octet-stream", "gzip").varies());
+	}
+
+	@Test
+	public void test_Gzip_CompressedOnceWhen_Concurrent() throws ApplicationException, IOException,
+			InterruptedException {
+		final File file = writeScratchFile("concurrent.html", text(2000));
+		// count the compressions (each one reads the content once) and make them slow
+		final AtomicInteger reads = new AtomicInteger();
+		final CompressionCache slowCache = new CompressionCache(new FileUtil(scratchRoot.toString()) {
+			@Override
+			public ByteBuffer getContent(File file) {
+				reads.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getContent(file);
+			}
+		}, 100, 100000, 100000);
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReferenceArray<CompressionCache.Variant> variants = new AtomicReferenceArray<CompressionCache.Variant>(
+				threads);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						variants.set(index, select(slowCache, file, "text/html", "gzip"));
+					} catch (Exception e) {
+						// leaves the variant null
+					}
+				}
+			});
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join(10000);
+
+		assertEquals(1, reads.get());
+		for (int i = 0; i < threads; i++)
+			assertSame(variants.get(0), variants.get(i));
+		assertNotNull(variants.get(0));
+	}
+
+	@Test
+	public void test_Evicted() throws ApplicationException, IOException {
+		// each of these compresses to more than half the cache
+		Random random = new Random(7);
+		for (int i = 0; i < 3; i++) {
+			byte[] content = text(1400);
+			for (int j = 0; j < content.length; j++)
+				content[j] = (byte) ('a' + random.nextInt(16));
+			assertNotNull(select(cache, writeScratchFile("evict" + i + ".txt", content), "text/plain", "gzip"));
+			assertTrue(cache.getCachedBytes() <= 1000);
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static byte[] text(int length) {
+		byte[] text = new byte[length];
+		Arrays.fill(text, (byte) 'a');
+		return text;
+	}
+
+	// what RequestHandler does: pick the encoding, then get the variant in it
+	private static CompressionCache.Variant select(CompressionCache cache, File file, String contentType,
+			String acceptEncoding) throws ApplicationException {
+		CompressionCache.Selection selection = cache.select(file, contentType, acceptEncoding);
+		return (null == selection.getEncoding()) ? null : cache.getVariant(selection, true);
+	}
+
+	private static byte[] gunzip(ByteBuffer compressed) throws IOException {
+		byte[] bytes = new byte[compressed.remaining()];
+		compressed.get(bytes);
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private File writeScratchFile(String name, byte[] content) throws IOException {
+		Path path = scratchRoot.resolve(name);
+		Files.write(path, content);
+		return path.toFile();
+	}
+
+}
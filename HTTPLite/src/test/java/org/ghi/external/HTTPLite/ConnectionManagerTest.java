@@ -0,0 +1,194 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/*
+ * This tests the decisions of the ConnectionManager on their own; the IntegrationTest
+ * checks what the engines make of them
+ */
+public class ConnectionManagerTest {
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_MaxConnectionsInvalid() throws ApplicationException {
+		new ConnectionManager(0, 100, 1000, 1000, 1, 1000);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_IdleTimeoutInvalid() throws ApplicationException {
+		new ConnectionManager(10, 100, 0, 1000, 1, 1000);
+	}
+
+	@Test
+	public void test_Admission() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(2, 100, 1000, 1000, 1, 1000);
+		assertTrue(connections.tryOpen());
+		assertTrue(connections.tryOpen());
+		// full
+		assertFalse(connections.tryOpen());
+		assertEquals(2, connections.getOpenConnections());
+
+		// until one goes away
+		connections.closed();
+		assertTrue(connections.tryOpen());
+		assertEquals(3, connections.getAcceptedConnections());
+	}
+
+	@Test
+	public void test_MayKeepAlive() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 3, 1000, 1000, 1, 1000);
+		assertTrue(connections.mayKeepAlive(1));
+		assertTrue(connections.mayKeepAlive(2));
+		// that was the last one
+		assertFalse(connections.mayKeepAlive(3));
+	}
+
+	@Test
+	public void test_MayKeepAlive_NotWhenOverloaded() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 1, 1000);
+		connections.setThreads(1);
+		connections.tryOpen();
+		assertTrue(connections.mayKeepAlive(1));
+		// a second connection has to wait for the thread
+		connections.tryOpen();
+		assertTrue(connections.isOverloaded());
+		assertFalse(connections.mayKeepAlive(1));
+	}
+
+	@Test
+	public void test_Drain() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 1, 1000);
+		MockConnection idle = new MockConnection();
+		MockConnection busy = new MockConnection();
+		assertTrue(connections.tryOpen());
+		assertTrue(connections.tryOpen());
+		assertTrue(connections.idle(idle));
+		connections.busy(busy);
+
+		// the idle one goes right away, the busy one gets to finish
+		connections.drain();
+		assertTrue(idle.closed);
+		assertFalse(busy.closed);
+		assertFalse(connections.mayKeepAlive(1));
+		assertFalse(connections.tryOpen());
+		// and cannot go idle any more
+		assertFalse(connections.idle(busy));
+
+		// unless it takes too long
+		connections.busy(busy);
+		connections.closeAll();
+		assertTrue(busy.closed);
+	}
+
+	@Test
+	public void test_CloseIdle() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 1, 1000);
+		MockConnection first = new MockConnection();
+		MockConnection second = new MockConnection();
+		connections.idle(first);
+		connections.idle(second);
+
+		// one at a time
+		connections.closeIdle();
+		assertTrue(first.closed ^ second.closed);
+		connections.closeIdle();
+		assertTrue(first.closed && second.closed);
+	}
+
+	@Test
+	public void test_CloseIdle_RacesBusy() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 1, 1000);
+		MockConnection taken = new MockConnection();
+		MockConnection closed = new MockConnection();
+
+		// taken back by its worker first, so it is not closed
+		connections.idle(taken);
+		assertTrue(connections.busy(taken));
+		connections.closeIdle();
+		assertFalse(taken.closed);
+
+		// closed first, so the worker cannot take it back
+		connections.idle(closed);
+		connections.closeIdle();
+		assertTrue(closed.closed);
+		assertFalse(connections.busy(closed));
+	}
+
+	@Test
+	public void test_CloseIdle_ClosesOpenedWhen_NoRequestYet() throws ApplicationException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 1, 1000);
+		connections.setThreads(1);
+		connections.tryOpen();
+		connections.tryOpen();
+		MockConnection silent = new MockConnection();
+		MockConnection talking = new MockConnection();
+
+		// it waited for its thread already, so it is not turned away for the load
+		connections.opened(talking);
+		connections.opened(silent);
+		assertTrue(connections.busy(talking));
+
+		// but until its request starts to arrive, it can make room for others
+		connections.closeIdle();
+		assertTrue(silent.closed);
+		assertFalse(talking.closed);
+		assertFalse(connections.busy(silent));
+	}
+
+	@Test
+	public void test_Reject_LingersUntil_ClientCloses() throws ApplicationException, IOException,
+			InterruptedException {
+		ConnectionManager connections = new ConnectionManager(10, 100, 1000, 1000, 5, 1000);
+		ServerSocketChannel listenChannel = ServerSocketChannel.open();
+		listenChannel.bind(new InetSocketAddress("localhost", 0));
+		Socket client = new Socket("localhost", listenChannel.socket().getLocalPort());
+		try {
+			connections.reject(listenChannel.accept());
+			assertEquals(1, connections.getRejectedConnections());
+
+			// the request only arrives once the response is out, a bit at a time, and that must not reset the connection
+			Thread.sleep(200);
+			client.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+			Thread.sleep(200);
+			client.getOutputStream().write("Host: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			String response = readAll(client.getInputStream());
+			assertTrue(response.startsWith("HTTP/1.1 503 "));
+			assertTrue(response.contains("Retry-After: 5\r\n"));
+		} finally {
+			client.close();
+			listenChannel.close();
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static String readAll(InputStream in) throws IOException {
+		StringBuilder read = new StringBuilder();
+		int b;
+		while ((b = in.read()) >= 0)
+			read.append((char) b);
+		return read.toString();
+	}
+
+	/*
+	 * Mocking classes
+	 */
+	private static class MockConnection implements Closeable {
+		private boolean closed;
+
+		public void close() {
+			closed = true;
+		}
+	}
+
+}
@@ -125,5 +125,17 @@ public class FileUtilTest {
 		// now check
 		assertEquals(now, fileUtil.getLastModifiedDate(file));
 	}
+
+	@Test
+	public void test_ETag() {
+		File file = fileUtil.getFileFromPath("/index.html");
+		String etag = fileUtil.getETag(file);
+		// a strong tag, and the same one every time
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertEquals(etag, fileUtil.getETag(file));
+		// but a different one when the file changes
+		file.setLastModified(fileUtil.getLastModifiedDate(file).getTime() - 1000);
+		assertNotEquals(etag, fileUtil.getETag(file));
+	}
 	
 }
@@ -0,0 +1,93 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * This checks HttpDate against the formatter that comes with Java
+ */
+public class HttpDateTest {
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	@Test
+	public void test_Format_KnownDate() {
+		// the example from RFC 7231
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(784111777000L));
+	}
+
+	@Test
+	public void test_Format_Epoch() {
+		assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDate.format(0));
+	}
+
+	@Test
+	public void test_Format_LeapDay() {
+		assertEquals(FORMATTER.format(Instant.parse("2000-02-29T23:59:59Z")),
+				HttpDate.format(Instant.parse("2000-02-29T23:59:59.999Z").toEpochMilli()));
+	}
+
+	@Test
+	public void test_Format_MatchesJava() {
+		// a fixed seed, so that a failure can be reproduced
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			// anything between 1970 and 2100
+			long millis = (long) (random.nextDouble() * 4102444800000L);
+			assertEquals(FORMATTER.format(Instant.ofEpochMilli(millis)), HttpDate.format(millis));
+		}
+	}
+
+	@Test
+	public void test_Parse_AllFormats() {
+		// the three formats of RFC 7231
+		assertEquals(784111777000L, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+		assertEquals(784111777000L, HttpDate.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+		assertEquals(784111777000L, HttpDate.parse("Sun Nov  6 08:49:37 1994"));
+	}
+
+	@Test
+	public void test_Parse_Invalid() {
+		assertEquals(-1, HttpDate.parse(null));
+		assertEquals(-1, HttpDate.parse(""));
+		assertEquals(-1, HttpDate.parse("Sun, 06 Foo 1994 08:49:37 GMT"));
+		assertEquals(-1, HttpDate.parse("Sun, 06 Nov 1994 08:49:37 UTC"));
+		assertEquals(-1, HttpDate.parse("yesterday"));
+	}
+
+	@Test
+	public void test_Parse_MatchesFormat() {
+		// a fixed seed, so that a failure can be reproduced
+		Random random = new Random(7);
+		for (int i = 0; i < 10000; i++) {
+			long seconds = (long) (random.nextDouble() * 4102444800L);
+			assertEquals(seconds * 1000, HttpDate.parse(HttpDate.format(seconds * 1000)));
+		}
+	}
+
+	@Test
+	public void test_Write_Length() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		HttpDate.write(buffer, System.currentTimeMillis());
+		assertEquals(HttpDate.LENGTH, buffer.position());
+	}
+
+	@Test
+	public void test_Now() {
+		long before = System.currentTimeMillis() / 1000 * 1000;
+		String now = new String(HttpDate.now(), StandardCharsets.US_ASCII);
+		long after = System.currentTimeMillis();
+		// the cached date must be the current second
+		assertTrue(now.equals(HttpDate.format(before)) || now.equals(HttpDate.format(after)));
+	}
+
+}
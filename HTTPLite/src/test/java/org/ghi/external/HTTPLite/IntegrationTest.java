@@ -1,55 +1,104 @@
 package org.ghi.external.HTTPLite;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import rawhttp.core.RawHttp;
 import rawhttp.core.RawHttpRequest;
 import rawhttp.core.RawHttpResponse;
 
+/*
+ * The same tests are run against each of the engines. Parameterized runs all the
+ * tests for one engine before moving on to the next, so we only need to restart
+ * the server when the engine changes.
+ */
+@RunWith(Parameterized.class)
 public class IntegrationTest {
 	// instances we will be using for all the tests 
+	private static String documentRoot;
 	private static IApplicationInjector injector;
-	private static ServerListener server;
+	private static IServerListener server;
+	private static String serverEngine;
 	private static RawHttp http;
 	private static IFileUtil fileUtil;
+	
+	// the engine we are testing
+	private String engine;
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { HTTPLite.ENGINE_BLOCKING }, { HTTPLite.ENGINE_NIO } });
+	}
+
+	public IntegrationTest(String engine) {
+		this.engine = engine;
+	}
 
 	@BeforeClass
 	public static void beforeClass() throws ApplicationException {
 		// lets use the same config as the application
 		Properties properties = HTTPLite.getConfigPropertiesFromClasspath();
 		// extract Document Root
-		String documentRoot = properties.getProperty(HTTPLite.KEY_DOCUMENT_ROOT);
-		
-		// create an injector
-		injector = new ApplicationInjector(documentRoot);
-		server = (ServerListener)injector.getServerListener(8080, 10);
-		
-		// start the server on a different thread (we need this one to go on)
-		Thread t = new Thread(server);
-		t.start();
+		documentRoot = properties.getProperty(HTTPLite.KEY_DOCUMENT_ROOT);
 		
 		// create an IFileUtil
-		fileUtil = injector.getFileUtil();
+		fileUtil = new ApplicationInjector(documentRoot).getFileUtil();
 		
 		// create a RawHttp parser
 		http = new RawHttp();
 	}
 	
+	@Before
+	public void before() throws ApplicationException {
+		// nothing to do if the right engine is already running
+		if (engine.equals(serverEngine))
+			return;
+		if (null != server)
+			server.stop();
+		
+		// create an injector for the engine under test
+		Properties properties = new Properties();
+		properties.setProperty(HTTPLite.KEY_ENGINE, engine);
+		injector = new ApplicationInjector(documentRoot, properties);
+		server = injector.getServerListener(8080, 10);
+		
+		// start the server on a different thread (we need this one to go on)
+		Thread t = new Thread(server);
+		t.start();
+		waitForServer(8080);
+		serverEngine = engine;
+	}
+	
 	@AfterClass
 	public static void afterClass() {
 		server.stop();
@@ -70,6 +119,28 @@ public class IntegrationTest {
 		new ServerListener(null, 8081, 0);
 	}
 
+	@Test(expected=ApplicationException.class)
+	public void test_ThrowsWhen_NioInjectorNull() throws ApplicationException {
+		new NioServerListener(null, 8081, 2);
+	}
+
+	@Test(expected=ApplicationException.class)
+	public void test_ThrowsWhen_NioPortInvalid() throws ApplicationException {
+		new NioServerListener(injector, -1, 2);
+	}
+
+	@Test(expected=ApplicationException.class)
+	public void test_ThrowsWhen_EventLoopsInvalid() throws ApplicationException {
+		new NioServerListener(injector, 8081, 0);
+	}
+
+	@Test(expected=ApplicationException.class)
+	public void test_ThrowsWhen_EngineUnknown() throws ApplicationException {
+		Properties properties = new Properties();
+		properties.setProperty(HTTPLite.KEY_ENGINE, "no_such_engine");
+		new ApplicationInjector(documentRoot, properties).getServerListener(8081, 10);
+	}
+
 	@Test
 	public void test_GetOK_HTMLFile() throws IOException {
 		RawHttpResponse<?> response = executeRequest("GET", "/index.html");
@@ -177,12 +248,23 @@ public class IntegrationTest {
 		assertEquals("image/jpeg", contentType.get());
 	}
 
+	@Test
+	public void test_GetOK_JpegFileContent() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/img/main/logo.jpg");
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		// the body must be the file, byte for byte
+		File file = fileUtil.getFileFromPath("/img/main/logo.jpg");
+		assertArrayEquals(Files.readAllBytes(file.toPath()), response.getBody().get().asRawBytes());
+	}
+
 	@Test
 	public void test_LastModified_GetOK() throws IOException {
 		// set the modified date so that it is predictable
 		Date now = new Date();
 		File file = fileUtil.getFileFromPath("/index.html");
 		file.setLastModified(now.getTime());
+		waitForLastModified(file, now);
 		
 		RawHttpResponse<?> response = executeRequest("GET", "/index.html");
 		// check the response code
@@ -190,7 +272,7 @@ public class IntegrationTest {
 		// check content type
 		Optional<String> lastModified = response.getHeaders().getFirst("Last-Modified");
 		assertTrue(lastModified.isPresent());
-		assertEquals(now.toString(), lastModified.get());
+		assertEquals(httpDate(now), lastModified.get());
 	}
 
 	@Test
@@ -199,6 +281,7 @@ public class IntegrationTest {
 		Date now = new Date();
 		File file = fileUtil.getFileFromPath("/index.html");
 		file.setLastModified(now.getTime());
+		waitForLastModified(file, now);
 		
 		RawHttpResponse<?> response = executeRequest("HEAD", "/index.html");
 		// check the response code
@@ -206,7 +289,139 @@ public class IntegrationTest {
 		// check content type
 		Optional<String> lastModified = response.getHeaders().getFirst("Last-Modified");
 		assertTrue(lastModified.isPresent());
-		assertEquals(now.toString(), lastModified.get());
+		assertEquals(httpDate(now), lastModified.get());
+	}
+
+	@Test
+	public void test_NotModified_IfNoneMatch() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html");
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		Optional<String> etag = response.getHeaders().getFirst("ETag");
+		assertTrue(etag.isPresent());
+
+		// the client already has this version
+		response = executeRequest("GET", "/index.html", "If-None-Match: \"other\", " + etag.get(),
+				new Socket("localhost", 8080));
+		assertEquals(304, response.getStatusCode());
+		assertEquals(etag, response.getHeaders().getFirst("ETag"));
+		assertFalse(response.getBody().isPresent());
+
+		// but not this one, and If-None-Match takes precedence over If-Modified-Since
+		response = executeRequest("GET", "/index.html", "If-None-Match: \"other\"\r\n"
+				+ "If-Modified-Since: " + httpDate(new Date()), new Socket("localhost", 8080));
+		assertEquals(200, response.getStatusCode());
+	}
+
+	@Test
+	public void test_NotModified_IfModifiedSince() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html");
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		Optional<String> lastModified = response.getHeaders().getFirst("Last-Modified");
+		assertTrue(lastModified.isPresent());
+
+		// the client has the version it was sent
+		response = executeRequest("HEAD", "/index.html", "If-Modified-Since: " + lastModified.get(),
+				new Socket("localhost", 8080));
+		assertEquals(304, response.getStatusCode());
+
+		// but not if it is older than that
+		response = executeRequest("GET", "/index.html", "If-Modified-Since: Thu, 01 Jan 1970 00:00:00 GMT",
+				new Socket("localhost", 8080));
+		assertEquals(200, response.getStatusCode());
+	}
+
+	@Test
+	public void test_PartialContent_Range() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/img/main/logo.jpg", "Range: bytes=100-199",
+				new Socket("localhost", 8080));
+		// check the response code
+		assertEquals(206, response.getStatusCode());
+		// check the part we got
+		File file = fileUtil.getFileFromPath("/img/main/logo.jpg");
+		byte[] content = Files.readAllBytes(file.toPath());
+		assertEquals("bytes 100-199/" + content.length, response.getHeaders().getFirst("Content-Range").get());
+		assertEquals("100", response.getHeaders().getFirst("Content-Length").get());
+		assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getBody().get().asRawBytes());
+	}
+
+	@Test
+	public void test_PartialContent_MultipleRanges() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html", "Range: bytes=0-9,-10",
+				new Socket("localhost", 8080));
+		// check the response code
+		assertEquals(206, response.getStatusCode());
+		// check content type
+		Optional<String> contentType = response.getHeaders().getFirst("Content-Type");
+		assertTrue(contentType.isPresent());
+		assertTrue(contentType.get().startsWith("multipart/byteranges; boundary="));
+		// check that both parts are there
+		long length = fileUtil.getContentLength(fileUtil.getFileFromPath("/index.html"));
+		String body = new String(response.getBody().get().asRawBytes(), "ISO-8859-1");
+		assertTrue(body.contains("Content-Range: bytes 0-9/" + length));
+		assertTrue(body.contains("Content-Range: bytes " + (length - 10) + "-" + (length - 1) + "/" + length));
+	}
+
+	@Test
+	public void test_RangeNotSatisfiable() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html", "Range: bytes=100000000-",
+				new Socket("localhost", 8080));
+		// check the response code
+		assertEquals(416, response.getStatusCode());
+		long length = fileUtil.getContentLength(fileUtil.getFileFromPath("/index.html"));
+		assertEquals("bytes */" + length, response.getHeaders().getFirst("Content-Range").get());
+	}
+
+	@Test
+	public void test_Range_IgnoredWhen_IfRangeStale() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html",
+				"Range: bytes=0-9\r\nIf-Range: \"stale\"", new Socket("localhost", 8080));
+		// the client has an older version, so it gets all of the new one
+		assertEquals(200, response.getStatusCode());
+		assertEquals("20636", response.getHeaders().getFirst("Content-Length").get());
+	}
+
+	@Test
+	public void test_Compressed_Gzip() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html", "Accept-Encoding: br;q=0, gzip",
+				new Socket("localhost", 8080));
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		assertEquals("gzip", response.getHeaders().getFirst("Content-Encoding").get());
+		assertEquals("Accept-Encoding", response.getHeaders().getFirst("Vary").get());
+		assertEquals("text/html", response.getHeaders().getFirst("Content-Type").get());
+		// the content length is that of what was sent, and it unpacks to the file
+		byte[] body = response.getBody().get().asRawBytes();
+		assertEquals(String.valueOf(body.length), response.getHeaders().getFirst("Content-Length").get());
+		File file = fileUtil.getFileFromPath("/index.html");
+		assertArrayEquals(Files.readAllBytes(file.toPath()), gunzip(body));
+
+		// the compressed version has its own entity tag
+		String etag = response.getHeaders().getFirst("ETag").get();
+		assertFalse(etag.equals(fileUtil.getETag(file)));
+		response = executeRequest("GET", "/index.html", "Accept-Encoding: gzip\r\nIf-None-Match: " + etag,
+				new Socket("localhost", 8080));
+		assertEquals(304, response.getStatusCode());
+		assertEquals("Accept-Encoding", response.getHeaders().getFirst("Vary").get());
+	}
+
+	@Test
+	public void test_Compressed_NotWhenNotAccepted() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html", "Accept-Encoding: identity",
+				new Socket("localhost", 8080));
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		assertFalse(response.getHeaders().getFirst("Content-Encoding").isPresent());
+		assertEquals("Accept-Encoding", response.getHeaders().getFirst("Vary").get());
+		assertEquals("20636", response.getHeaders().getFirst("Content-Length").get());
+
+		// and images are never compressed (nor do they vary)
+		response = executeRequest("GET", "/img/main/logo.jpg", "Accept-Encoding: gzip",
+				new Socket("localhost", 8080));
+		assertEquals(200, response.getStatusCode());
+		assertFalse(response.getHeaders().getFirst("Content-Encoding").isPresent());
+		assertFalse(response.getHeaders().getFirst("Vary").isPresent());
 	}
 
 	@Test
@@ -265,6 +480,38 @@ public class IntegrationTest {
 		assertEquals(405, response.getStatusCode());
 	}
 	
+	@Test
+	public void test_ServerStatus_Json() throws IOException {
+		// make sure there is something to count
+		executeRequest("GET", "/index.html");
+		RawHttpResponse<?> response = executeRequest("GET", StatusPage.DEFAULT_PATH);
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		// check content type, and that it is not cached
+		assertEquals(StatusPage.JSON, response.getHeaders().getFirst("Content-Type").get());
+		assertEquals("no-store", response.getHeaders().getFirst("Cache-Control").get());
+		// check content
+		String content = new String(response.getBody().get().asRawBytes(), StandardCharsets.UTF_8);
+		assertTrue(content.startsWith("{"));
+		assertTrue(content.contains("\"GET\":"));
+		assertTrue(content.contains("\"connections_open\":"));
+		assertTrue(content.contains("\"latency_us\":"));
+	}
+
+	@Test
+	public void test_ServerStatus_Prometheus() throws IOException {
+		RawHttpResponse<?> response = executeRequest("GET", StatusPage.DEFAULT_PATH + "?format=prometheus");
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		// check content type
+		assertEquals(StatusPage.PROMETHEUS, response.getHeaders().getFirst("Content-Type").get());
+		// check content
+		String content = new String(response.getBody().get().asRawBytes(), StandardCharsets.UTF_8);
+		assertTrue(content.contains("# TYPE httplite_requests_total counter"));
+		assertTrue(content.contains("httplite_connections_accepted_total "));
+		assertTrue(content.contains("httplite_parse_seconds_count "));
+	}
+
 	@Test
 	public void test_KeepAlive() throws UnknownHostException, IOException {
 		// create our own connection, which we will use for two requests
@@ -290,15 +537,69 @@ public class IntegrationTest {
 		socket.close();
 	}
 	
+	@Test
+	public void test_KeepAlive_Close() throws UnknownHostException, IOException {
+		Socket socket = new Socket("localhost", 8080);
+		
+		// HTTP/1.1 connections are kept alive unless the client says otherwise
+		RawHttpResponse<?> response = executeRequest("GET", "/index.html", "Connection: close", socket);
+		// check the response code
+		assertEquals(200, response.getStatusCode());
+		// we say we are closing, and we do
+		assertEquals("close", response.getHeaders().getFirst("Connection").get());
+		assertEquals(-1, socket.getInputStream().read());
+		
+		socket.close();
+	}
+	
+	@Test
+	public void test_ServiceUnavailable_WhenFull() throws ApplicationException, IOException, InterruptedException {
+		// a server that takes one connection at a time
+		Properties properties = new Properties();
+		properties.setProperty(HTTPLite.KEY_ENGINE, engine);
+		properties.setProperty(HTTPLite.KEY_MAX_CONNECTIONS, "1");
+		properties.setProperty(HTTPLite.KEY_RETRY_AFTER, "5");
+		IServerListener s = new ApplicationInjector(documentRoot, properties).getServerListener(8086, 10);
+		Thread t = new Thread(s);
+		t.start();
+		waitForServer(8086);
+		
+		// the first connection gets in (once the one that checked the server is gone)
+		Socket socket = null;
+		RawHttpResponse<?> response = null;
+		for (int i = 0; i < 50; i++) {
+			socket = new Socket("localhost", 8086);
+			response = executeRequest("GET", "/index.html", "", socket);
+			if (200 == response.getStatusCode())
+				break;
+			socket.close();
+			Thread.sleep(100);
+		}
+		assertEquals(200, response.getStatusCode());
+		
+		// and while it is open, the next one is turned away straight away
+		Socket other = new Socket("localhost", 8086);
+		response = executeRequest("GET", "/index.html", "", other);
+		assertEquals(503, response.getStatusCode());
+		assertEquals("5", response.getHeaders().getFirst("Retry-After").get());
+		assertEquals("close", response.getHeaders().getFirst("Connection").get());
+		
+		other.close();
+		socket.close();
+		s.stop();
+		t.join();
+	}
+	
 	@Test
 	public void test_InternalServerError_WithMock() throws ApplicationException, IOException {
 		// first let's get a new Server on a new port
-		injector = new MockInjector();
-		ServerListener s = (ServerListener)injector.getServerListener(8085, 10);
+		IApplicationInjector mockInjector = new MockInjector();
+		IServerListener s = mockInjector.getServerListener(8085, 10);
 		
 		// start the server on a different thread (we need this one to go on)
 		Thread t = new Thread(s);
 		t.start();
+		waitForServer(8085);
 		
 		// create a connection to the new server
 		Socket socket = new Socket("localhost", 8085);
@@ -323,6 +624,58 @@ public class IntegrationTest {
 	/*
 	 * Private helper methods
 	 */
+	// formats a date the way RFC 7231 wants it, independently of the server's HttpDate
+	private static String httpDate(Date date) {
+		return DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+				.withZone(ZoneOffset.UTC).format(date.toInstant());
+	}
+
+	// unpacks a gzip compressed body
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		return out.toByteArray();
+	}
+
+	private static void waitForLastModified(File file, Date date) {
+		/*
+		 * The server's file cache finds out about changes asynchronously (WatchService),
+		 * so give it a moment. Polling can take up to 10 seconds on some systems.
+		 */
+		try {
+			IFileUtil serverFileUtil = injector.getFileUtil();
+			for (int i = 0; i < 150; i++) {
+				if (serverFileUtil.getLastModifiedDate(file).getTime() / 1000 == date.getTime() / 1000)
+					return;
+				Thread.sleep(100);
+			}
+		} catch (ApplicationException e) {
+			// the assertions will fail anyway
+		} catch (InterruptedException e) {
+			// the assertions will fail anyway
+		}
+	}
+	
+	private static void waitForServer(int port) {
+		// the server binds on its own thread, so give it a moment
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+	
 	private RawHttpResponse<?> executeRequest(String method, String path) throws IOException {
 		Socket socket = new Socket("localhost", 8080);
 		return executeRequest(method, path, "", socket);
@@ -342,18 +695,45 @@ public class IntegrationTest {
 	 * Mocking classes to help test errors
 	 */
 	public class MockInjector implements IApplicationInjector {
+		private ServerMetrics metrics = new ServerMetrics();
 
-		public Runnable getServerListener(int port, int poolSize) throws ApplicationException {
+		public IServerListener getServerListener(int port, int poolSize) throws ApplicationException {
+			if (engine.equals(HTTPLite.ENGINE_NIO))
+				return new NioServerListener(this, port, 2);
 			return new ServerListener(this, port, poolSize);
 		}
 
-		public Runnable getWorker(Socket socket) throws ApplicationException {
-			return new ConnectedWorker(this, socket);
+		public Runnable getWorker(Socket socket, ConnectionManager connections) throws ApplicationException {
+			return new ConnectedWorker(this, socket, connections);
 		}
 
 		public IFileUtil getFileUtil() throws ApplicationException {
 			return new MockFileUtil();
 		}
+
+		public RequestParser getRequestParser() throws ApplicationException {
+			return new RequestParser();
+		}
+
+		public CompressionCache getCompressionCache() throws ApplicationException {
+			return null;
+		}
+
+		public ConnectionManager getConnectionManager() throws ApplicationException {
+			return new ConnectionManager();
+		}
+
+		public ServerMetrics getMetrics() {
+			return metrics;
+		}
+
+		public StatusPage getStatusPage() throws ApplicationException {
+			return null;
+		}
+
+		public AccessLog getAccessLog() throws ApplicationException {
+			return null;
+		}
 		
 	}
 	
@@ -388,6 +768,16 @@ public class IntegrationTest {
 			causeException();
 			return null;
 		}
+
+		public String getETag(File file) {
+			causeException();
+			return null;
+		}
+
+		public ByteBuffer getContent(File file) throws ApplicationException {
+			causeException();
+			return null;
+		}
 		
 		private void causeException() {
 			String s = null;
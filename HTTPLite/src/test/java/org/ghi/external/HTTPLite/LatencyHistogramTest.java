@@ -0,0 +1,96 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * This tests the LatencyHistogram, including from several threads at once
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void test_Empty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void test_SmallValues_Exact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 50; i++)
+			histogram.record(i);
+		assertEquals(50, histogram.getCount());
+		assertEquals(1275, histogram.getSum());
+		assertEquals(1, histogram.getMin());
+		assertEquals(50, histogram.getMax());
+		assertEquals(25, histogram.getPercentile(50));
+		assertEquals(45, histogram.getPercentile(90));
+		assertEquals(50, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void test_LargeValues_WithinThreePercent() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] values = new long[10000];
+		Random random = new Random(42);
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1000 + (long) (random.nextDouble() * 100000000L);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long estimate = histogram.getPercentile(percentile);
+			assertTrue(estimate >= exact);
+			assertTrue(estimate <= exact * 1.03);
+		}
+		assertEquals(values[values.length - 1], histogram.getPercentile(100));
+	}
+
+	@Test
+	public void test_Add() {
+		LatencyHistogram first = new LatencyHistogram();
+		LatencyHistogram second = new LatencyHistogram();
+		first.record(10);
+		second.record(5);
+		second.record(1000);
+		first.add(second);
+		assertEquals(3, first.getCount());
+		assertEquals(1015, first.getSum());
+		assertEquals(5, first.getMin());
+		assertEquals(1000, first.getMax());
+	}
+
+	@Test
+	public void test_Concurrent() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int thread = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 10000; j++)
+						histogram.record(thread * 10000 + j);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		// nothing got lost
+		assertEquals(40000, histogram.getCount());
+		assertEquals(40000L * 39999 / 2, histogram.getSum());
+		assertEquals(0, histogram.getMin());
+		assertEquals(39999, histogram.getMax());
+	}
+
+}
@@ -0,0 +1,286 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * This tests the RequestParser on its own, feeding it requests the way the engines do
+ */
+public class RequestParserTest {
+	private RequestParser parser;
+	private HttpRequest request;
+
+	@Before
+	public void before() throws ApplicationException {
+		// small limits, so that we can hit them
+		parser = new RequestParser(64, 128, 4);
+		request = new HttpRequest();
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_RequestLineSizeInvalid() throws ApplicationException {
+		new RequestParser(0, 128, 4);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_HeaderCountInvalid() throws ApplicationException {
+		new RequestParser(64, 128, -1);
+	}
+
+	@Test
+	public void test_Parse_SimpleRequest() throws RequestParseException {
+		ByteBuffer buffer = buffer("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: keep-alive\r\n"
+				+ "If-Modified-Since: Sun, 06 Nov 1994 08:49:37 GMT\r\nAccept-Encoding: gzip, br\r\n\r\n");
+		assertTrue(parser.parse(buffer, request));
+		assertFalse(buffer.hasRemaining());
+
+		assertEquals(HttpRequest.GET, request.getMethod());
+		assertEquals("/index.html", request.getPath());
+		assertTrue(request.isHttp11());
+		assertTrue(request.isConnectionKeepAlive());
+		assertFalse(request.isConnectionClose());
+		assertEquals(0, request.getContentLength());
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", request.getIfModifiedSince());
+		assertEquals("gzip, br", request.getAcceptEncoding());
+		assertNull(request.getRange());
+	}
+
+	@Test
+	public void test_Parse_HeaderNamesIgnoreCase() throws RequestParseException {
+		ByteBuffer buffer = buffer("HEAD / HTTP/1.0\r\nCONNECTION: Upgrade, Close\r\nrange: bytes=0-9\r\n\r\n");
+		assertTrue(parser.parse(buffer, request));
+		assertEquals(HttpRequest.HEAD, request.getMethod());
+		assertFalse(request.isHttp11());
+		assertFalse(request.isConnectionKeepAlive());
+		assertTrue(request.isConnectionClose());
+		assertEquals("bytes=0-9", request.getRange());
+	}
+
+	@Test
+	public void test_Parse_OtherMethod() throws RequestParseException {
+		assertTrue(parser.parse(buffer("DELETE /index.html HTTP/1.1\r\n\r\n"), request));
+		assertEquals("DELETE", request.getMethod());
+	}
+
+	@Test
+	public void test_Parse_PartialReads() throws RequestParseException {
+		byte[] bytes = "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+
+		// one byte at a time, the way a slow client would send it
+		for (int i = 0; i < bytes.length - 1; i++) {
+			buffer.put(bytes[i]);
+			buffer.flip();
+			assertFalse(parser.parse(buffer, request));
+			buffer.compact();
+		}
+		buffer.put(bytes[bytes.length - 1]);
+		buffer.flip();
+		assertTrue(parser.parse(buffer, request));
+		assertEquals("/a", request.getPath());
+	}
+
+	@Test
+	public void test_Parse_Pipelined() throws RequestParseException {
+		ByteBuffer buffer = buffer("GET /first HTTP/1.1\r\n\r\n"
+				+ "GET /second HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+				+ "\r\nHEAD /third HTTP/1.1\r\n\r\n"
+				+ "GET /fourth");
+
+		assertTrue(parser.parse(buffer, request));
+		assertEquals("/first", request.getPath());
+		assertTrue(parser.parse(buffer, request));
+		assertEquals("/second", request.getPath());
+		assertEquals(5, request.getContentLength());
+		// the body is skipped, and so is the stray line end after it
+		assertTrue(parser.parse(buffer, request));
+		assertEquals("/third", request.getPath());
+		assertEquals(HttpRequest.HEAD, request.getMethod());
+		// and the last one is not complete yet
+		assertFalse(parser.parse(buffer, request));
+		assertEquals("GET /fourth", StandardCharsets.US_ASCII.decode(buffer).toString());
+	}
+
+	@Test
+	public void test_Parse_BodyAcrossReads() throws RequestParseException {
+		ByteBuffer buffer = buffer("GET /first HTTP/1.1\r\nContent-Length: 10\r\n\r\n01234");
+		assertTrue(parser.parse(buffer, request));
+		assertFalse(parser.parse(buffer, request));
+		assertFalse(buffer.hasRemaining());
+
+		buffer = buffer("56789GET /second HTTP/1.1\r\n\r\n");
+		assertTrue(parser.parse(buffer, request));
+		assertEquals("/second", request.getPath());
+	}
+
+	@Test
+	public void test_Parse_Chunked() throws RequestParseException {
+		assertTrue(parser.parse(buffer("GET / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"), request));
+		// we cannot tell where it ends
+		assertEquals(-1, request.getContentLength());
+	}
+
+	@Test
+	public void test_Parse_BareLineFeeds() throws RequestParseException {
+		assertTrue(parser.parse(buffer("GET /lf HTTP/1.1\nHost: localhost\n\n"), request));
+		assertEquals("/lf", request.getPath());
+	}
+
+	@Test
+	public void test_Path_Decoded() throws RequestParseException {
+		assertEquals("/a b/c.html", parsePath("/a%20b/c.html?x=1#y"));
+		assertEquals("/caf\u00e9", parsePath("/caf%C3%A9"));
+		assertEquals("/index.html", parsePath("http://localhost:8080/index.html"));
+		assertEquals("/", parsePath("http://localhost:8080"));
+	}
+
+	@Test
+	public void test_Path_DotSegmentsRemoved() throws RequestParseException {
+		assertEquals("/etc/passwd", parsePath("/../../etc/passwd"));
+		assertEquals("/etc/passwd", parsePath("/a/%2e%2e/%2E%2E/etc/passwd"));
+		assertEquals("/etc/passwd", parsePath("/a/..%2f..%2fetc/passwd"));
+		assertEquals("/a/c", parsePath("/a/./b/../c"));
+		assertEquals("/a/", parsePath("/a/b/.."));
+		assertEquals("/", parsePath("/.."));
+		assertEquals("/a/..b/.c", parsePath("/a/..b/.c"));
+	}
+
+	@Test
+	public void test_Throws400_BadPercentEncoding() {
+		assertStatus(400, "GET /a%2 HTTP/1.1\r\n\r\n");
+		assertStatus(400, "GET /a%zz HTTP/1.1\r\n\r\n");
+		assertStatus(400, "GET /a%00b HTTP/1.1\r\n\r\n");
+		assertStatus(400, "GET /%C3%28 HTTP/1.1\r\n\r\n");
+	}
+
+	@Test
+	public void test_Throws400_Malformed() {
+		assertStatus(400, "GET\r\n\r\n");
+		assertStatus(400, "GET /index.html\r\n\r\n");
+		assertStatus(400, "GET index.html HTTP/1.1\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nNo colon\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nName : value\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nName: value\r\n folded\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+		assertStatus(400, "GET /index.html HTTP/1.1\r\nContent-Length: 0\r\nContent-Length: 5\r\n\r\n");
+		assertStatus(400, "G(T /index.html HTTP/1.1\r\n\r\n");
+	}
+
+	@Test
+	public void test_Throws505_Version() {
+		assertStatus(505, "GET /index.html HTTP/2.0\r\n\r\n");
+	}
+
+	@Test
+	public void test_Throws414_RequestLineTooLong() {
+		String path = "/" + new String(new char[80]).replace('\0', 'a');
+		// complete
+		assertStatus(414, "GET " + path + " HTTP/1.1\r\n\r\n");
+		// and before it is
+		assertStatus(414, "GET " + path);
+	}
+
+	@Test
+	public void test_Throws431_HeadersTooLarge() {
+		String value = new String(new char[200]).replace('\0', 'a');
+		// complete
+		assertStatus(431, "GET / HTTP/1.1\r\nName: " + value + "\r\n\r\n");
+		// and before it is
+		assertStatus(431, "GET / HTTP/1.1\r\nName: " + value);
+	}
+
+	@Test
+	public void test_Throws431_TooManyHeaders() {
+		assertStatus(431, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\nE: 5\r\n\r\n");
+	}
+
+	@Test
+	public void test_Parse_Query() throws RequestParseException {
+		assertEquals("/a", parsePath("/a?b=c#d"));
+		assertEquals("b=c", request.getQuery());
+		assertEquals("/a", parsePath("/a#d?e"));
+		assertNull(request.getQuery());
+		assertEquals("/a", parsePath("/a?"));
+		assertEquals("", request.getQuery());
+	}
+
+	@Test
+	public void test_Parse_LogFields() throws ApplicationException, RequestParseException {
+		String head = "GET /a%20b?c HTTP/1.1\r\nReferer: http://localhost/\r\nUser-Agent: curl/8.0\r\n\r\n";
+		// only kept when asked for
+		assertTrue(parser.parse(buffer(head), request));
+		assertNull(request.getTarget());
+		assertNull(request.getReferer());
+		assertNull(request.getUserAgent());
+
+		assertTrue(new RequestParser(64, 128, 4, true).parse(buffer(head), request));
+		assertEquals("/a b", request.getPath());
+		assertEquals("/a%20b?c", request.getTarget());
+		assertEquals("http://localhost/", request.getReferer());
+		assertEquals("curl/8.0", request.getUserAgent());
+	}
+
+	@Test
+	public void test_NewParser_SameLimits() throws ApplicationException, RequestParseException {
+		RequestParser logging = new RequestParser(64, 128, 4, true);
+		RequestParser parser = logging.newParser();
+		assertNotSame(logging, parser);
+		assertEquals(logging.getMaxHeadSize(), parser.getMaxHeadSize());
+		assertTrue(parser.parse(buffer("GET / HTTP/1.1\r\nUser-Agent: curl\r\n\r\n"), request));
+		assertEquals("curl", request.getUserAgent());
+		try {
+			parser.parse(buffer("GET /" + new String(new char[80]).replace('\0', 'a') + " HTTP/1.1\r\n\r\n"), request);
+			fail();
+		} catch (RequestParseException e) {
+			assertEquals(414, e.getStatus());
+		}
+	}
+
+	@Test
+	public void test_Grow() throws RequestParseException {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.put("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+		buffer = parser.grow(buffer);
+		assertEquals(32, buffer.capacity());
+		assertEquals(16, buffer.position());
+		// but only up to the largest head we accept
+		while (buffer.capacity() < parser.getMaxHeadSize())
+			buffer = parser.grow(buffer);
+		try {
+			parser.grow(buffer);
+			fail();
+		} catch (RequestParseException e) {
+			assertEquals(431, e.getStatus());
+		}
+	}
+
+	/*
+	 * Private helper methods
+	 */
+	private static ByteBuffer buffer(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private String parsePath(String target) throws RequestParseException {
+		assertTrue(parser.parse(buffer("GET " + target + " HTTP/1.1\r\n\r\n"), request));
+		return request.getPath();
+	}
+
+	private void assertStatus(int status, String head) {
+		try {
+			new RequestParser(64, 128, 4).parse(buffer(head), new HttpRequest());
+			fail("Expected " + status + " for " + head);
+		} catch (RequestParseException e) {
+			assertEquals(status, e.getStatus());
+		} catch (ApplicationException e) {
+			fail(e.getMessage());
+		}
+	}
+
+}
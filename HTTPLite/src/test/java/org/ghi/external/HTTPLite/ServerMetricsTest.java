@@ -0,0 +1,112 @@
+package org.ghi.external.HTTPLite;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * This tests the ServerMetrics, and the StatusPage that shows them
+ */
+public class ServerMetricsTest {
+	private ServerMetrics metrics;
+
+	@Before
+	public void before() {
+		metrics = new ServerMetrics();
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_MetricsNull() throws ApplicationException {
+		new StatusPage(StatusPage.DEFAULT_PATH, false, null);
+	}
+
+	@Test(expected = ApplicationException.class)
+	public void test_ThrowsWhen_PathInvalid() throws ApplicationException {
+		new StatusPage("server-status", false, metrics);
+	}
+
+	@Test
+	public void test_Served() {
+		metrics.served(HttpRequest.GET, 200, 1000);
+		metrics.served(HttpRequest.GET, 404, 100);
+		metrics.served(HttpRequest.HEAD, 200, 50);
+		metrics.served("DELETE", 405, 100);
+		// a request we could not parse has no method
+		metrics.served(null, 400, 100);
+
+		assertEquals(2, metrics.getRequests(HttpRequest.GET));
+		assertEquals(1, metrics.getRequests(HttpRequest.HEAD));
+		assertEquals(1, metrics.getRequests("other"));
+		assertEquals(2, metrics.getResponses(200));
+		assertEquals(1, metrics.getResponses(400));
+		assertEquals(0, metrics.getResponses(500));
+		assertEquals(1350, metrics.getBytesSent());
+	}
+
+	@Test
+	public void test_Json() {
+		metrics.served(HttpRequest.GET, 200, 1000);
+		metrics.getParseTimes().record(2000);
+		metrics.registerGauge("connections_open", "Connections open now.", () -> 7);
+
+		StringBuilder out = new StringBuilder();
+		metrics.writeJson(out);
+		String json = out.toString();
+		assertTrue(json.startsWith("{"));
+		assertTrue(json.trim().endsWith("}"));
+		assertTrue(json.contains("\"GET\": 1"));
+		assertTrue(json.contains("\"200\": 1"));
+		assertTrue(json.contains("\"bytes_sent\": 1000"));
+		assertTrue(json.contains("\"connections_open\": 7"));
+		assertTrue(json.contains("\"parse\": {\"count\": 1"));
+	}
+
+	@Test
+	public void test_Prometheus() {
+		metrics.served(HttpRequest.GET, 200, 1000);
+		metrics.getWriteTimes().record(2000000);
+		metrics.registerCounter("connections_accepted_total", "Connections accepted.", () -> 3);
+
+		StringBuilder out = new StringBuilder();
+		metrics.writePrometheus(out);
+		String text = out.toString();
+		assertTrue(text.contains("# TYPE httplite_requests_total counter\n"));
+		assertTrue(text.contains("httplite_requests_total{method=\"GET\"} 1\n"));
+		assertTrue(text.contains("httplite_responses_total{status=\"200\"} 1\n"));
+		assertTrue(text.contains("# TYPE httplite_connections_accepted_total counter\n"));
+		assertTrue(text.contains("httplite_connections_accepted_total 3\n"));
+		assertTrue(text.contains("# TYPE httplite_write_seconds summary\n"));
+		assertTrue(text.contains("httplite_write_seconds_count 1\n"));
+		assertTrue(text.contains("httplite_write_seconds_sum 0.002\n"));
+	}
+
+	@Test
+	public void test_StatusPage() throws ApplicationException, UnknownHostException {
+		StatusPage page = new StatusPage(StatusPage.DEFAULT_PATH, false, metrics);
+		assertTrue(page.matches("/server-status"));
+		assertFalse(page.matches("/server-status/"));
+
+		// local clients only, unless configured otherwise
+		InetAddress remote = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		assertTrue(page.isAllowed(InetAddress.getLoopbackAddress()));
+		assertFalse(page.isAllowed(remote));
+		assertTrue(new StatusPage("/status", true, metrics).isAllowed(remote));
+
+		assertEquals(StatusPage.JSON, page.getContentType(null));
+		assertEquals(StatusPage.PROMETHEUS, page.getContentType("format=prometheus"));
+		assertEquals(StatusPage.PROMETHEUS, page.getContentType("a=1&format=prometheus"));
+		// only the format parameter itself counts
+		assertEquals(StatusPage.JSON, page.getContentType("xformat=prometheus"));
+		assertEquals(StatusPage.JSON, page.getContentType("a=format=prometheus"));
+		assertEquals(StatusPage.JSON, page.getContentType("format=prometheusx"));
+		ByteBuffer content = page.render(StatusPage.PROMETHEUS);
+		assertTrue(StandardCharsets.UTF_8.decode(content).toString().startsWith("# HELP httplite_"));
+	}
+
+}